@@ -32,6 +32,7 @@
 
 package nokogiri;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -45,6 +46,7 @@ import org.jruby.RubyModule;
 import org.jruby.runtime.ObjectAllocator;
 import org.jruby.runtime.builtin.IRubyObject;
 import org.jruby.runtime.load.BasicLibraryService;
+import org.w3c.dom.Node;
 
 /**
  * Class to provide Nokogiri. This class is used to make "require 'nokogiri'" work
@@ -81,6 +83,31 @@ public class NokogiriService implements BasicLibraryService {
         return (Map<String, RubyClass>) ruby.getModule("Nokogiri").getInternalVariable("cache");
     }
 
+    /**
+     * @param ruby
+     * @return the Nokogiri classes of wrapped DOM nodes, indexed by node type
+     * @see org.w3c.dom.Node#getNodeType()
+     */
+    public static RubyClass[] getNodeClasses(Ruby ruby) {
+        return (RubyClass[]) ruby.getModule("Nokogiri").getInternalVariable("node_classes");
+    }
+
+    private static RubyClass[] populateNodeClasses(Map<String, RubyClass> nokogiriClassCache) {
+        RubyClass[] nodeClasses = new RubyClass[Node.NOTATION_NODE + 1];
+        Arrays.fill(nodeClasses, nokogiriClassCache.get("Nokogiri::XML::Node"));
+        nodeClasses[Node.ELEMENT_NODE] = nokogiriClassCache.get("Nokogiri::XML::Element");
+        nodeClasses[Node.ATTRIBUTE_NODE] = nokogiriClassCache.get("Nokogiri::XML::Attr");
+        nodeClasses[Node.TEXT_NODE] = nokogiriClassCache.get("Nokogiri::XML::Text");
+        nodeClasses[Node.CDATA_SECTION_NODE] = nokogiriClassCache.get("Nokogiri::XML::CDATA");
+        nodeClasses[Node.ENTITY_REFERENCE_NODE] = nokogiriClassCache.get("Nokogiri::XML::EntityReference");
+        nodeClasses[Node.ENTITY_NODE] = nokogiriClassCache.get("Nokogiri::XML::EntityDecl");
+        nodeClasses[Node.PROCESSING_INSTRUCTION_NODE] = nokogiriClassCache.get("Nokogiri::XML::ProcessingInstruction");
+        nodeClasses[Node.COMMENT_NODE] = nokogiriClassCache.get("Nokogiri::XML::Comment");
+        nodeClasses[Node.DOCUMENT_NODE] = nokogiriClassCache.get("Nokogiri::XML::Document");
+        nodeClasses[Node.DOCUMENT_TYPE_NODE] = nokogiriClassCache.get("Nokogiri::XML::DTD");
+        return nodeClasses;
+    }
+
     private static Map<String, RubyClass> populateNokogiriClassCahce(Ruby ruby) {
         Map<String, RubyClass> nokogiriClassCache = new HashMap<String, RubyClass>();
         nokogiriClassCache.put("Nokogiri::EncodingHandler", (RubyClass)ruby.getClassFromPath("Nokogiri::EncodingHandler"));
@@ -128,7 +155,9 @@ public class NokogiriService implements BasicLibraryService {
         createDocuments(ruby, xmlModule, htmlModule, xmlNode);
         createSaxModule(ruby, xmlSaxModule, htmlSaxModule);
         createXsltModule(ruby, xsltModule);
-        nokogiri.setInternalVariable("cache", populateNokogiriClassCahce(ruby));
+        Map<String, RubyClass> nokogiriClassCache = populateNokogiriClassCahce(ruby);
+        nokogiri.setInternalVariable("cache", nokogiriClassCache);
+        nokogiri.setInternalVariable("node_classes", populateNodeClasses(nokogiriClassCache));
     }
 
     private void createJavaLibraryVersionConstants(Ruby ruby, RubyModule nokogiri) {
@@ -216,6 +245,10 @@ public class NokogiriService implements BasicLibraryService {
         
         RubyClass xpathContext = xmlModule.defineClassUnder("XPathContext", ruby.getObject(), XML_XPATHCONTEXT_ALLOCATOR);
         xpathContext.defineAnnotatedMethods(XmlXpathContext.class);
+
+        RubyClass xpath = xmlModule.defineClassUnder("XPath", ruby.getObject(), ruby.getObject().getAllocator());
+        RubyClass xpathExpression = xpath.defineClassUnder("Expression", ruby.getObject(), XML_XPATH_EXPRESSION_ALLOCATOR);
+        xpathExpression.defineAnnotatedMethods(XmlXpathExpression.class);
         
         return node;
     }
@@ -600,6 +633,12 @@ public class NokogiriService implements BasicLibraryService {
         }
     };
 
+    private static final ObjectAllocator XML_XPATH_EXPRESSION_ALLOCATOR = new ObjectAllocator() {
+        public IRubyObject allocate(Ruby runtime, RubyClass klazz) {
+            return new XmlXpathExpression(runtime, klazz);
+        }
+    };
+
     public static ObjectAllocator XSLT_STYLESHEET_ALLOCATOR = new ObjectAllocator() {
         private XsltStylesheet xsltStylesheet = null;
         public IRubyObject allocate(Ruby runtime, RubyClass klazz) {
@@ -159,6 +159,7 @@ public class XmlAttr extends XmlNode {
     public IRubyObject unlink(ThreadContext context) {
         Attr attr = (Attr) node;
         Element parent = attr.getOwnerElement();
+        NokogiriHelpers.invalidateXpathContext(parent, false);
         parent.removeAttributeNode(attr);
 
         return this;
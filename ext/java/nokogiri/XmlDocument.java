@@ -40,6 +40,7 @@ import static nokogiri.internals.NokogiriHelpers.rubyStringToString;
 import static nokogiri.internals.NokogiriHelpers.stringOrNil;
 
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -47,6 +48,7 @@ import javax.xml.parsers.ParserConfigurationException;
 
 import nokogiri.internals.NokogiriHelpers;
 import nokogiri.internals.NokogiriNamespaceCache;
+import nokogiri.internals.NokogiriNodeCache;
 import nokogiri.internals.SaveContextVisitor;
 import nokogiri.internals.XmlDomParserContext;
 import nokogiri.internals.c14n.CanonicalFilter;
@@ -102,6 +104,11 @@ public class XmlDocument extends XmlNode {
     protected IRubyObject encoding = null;
     protected IRubyObject url = null;
 
+    /** batch (mutation) state, fix-ups deferred until the outermost batch completes */
+    private int batchDepth = 0;
+    private boolean batchNamespaceCacheReset;
+    private ArrayList<XmlNode> batchRelinks;
+
     public XmlDocument(Ruby ruby, RubyClass klazz) {
         super(ruby, klazz, createNewDocument());
     }
@@ -285,6 +292,76 @@ public class XmlDocument extends XmlNode {
         return this;
     }
 
+    /**
+     * Makes the document read-only: XPath queries might be run concurrently from multiple
+     * threads (sharing the same, completely built, DTM), structural changes raise an error.
+     */
+    @JRubyMethod(name="read_only!")
+    public IRubyObject read_only(ThreadContext context) {
+        XmlXpathContext.setReadOnly(getDocument());
+        return this;
+    }
+
+    @JRubyMethod(name="read_only?")
+    public IRubyObject read_only_p(ThreadContext context) {
+        return context.runtime.newBoolean(XmlXpathContext.isReadOnly(getDocument()));
+    }
+
+    /**
+     * Hold the (Ruby) wrappers of the document's nodes weakly, a wrapper no longer referenced
+     * gets garbage collected and a new one is created when the node is accessed again.
+     */
+    @JRubyMethod(name="weak_node_cache!")
+    public IRubyObject weak_node_cache(ThreadContext context) {
+        NokogiriNodeCache.setWeak(getDocument());
+        return this;
+    }
+
+    @JRubyMethod(name="weak_node_cache?")
+    public IRubyObject weak_node_cache_p(ThreadContext context) {
+        return context.runtime.newBoolean(NokogiriNodeCache.isWeak(getDocument()));
+    }
+
+    /**
+     * Yields the document, DOM mutations (<code>add_child</code>, <code>add_next_sibling</code>,
+     * <code>replace</code> etc.) done within the block defer their fix-ups (namespace re-linking,
+     * namespace cache reset and XPath context invalidation) until the (outermost) block completes,
+     * these are then applied once per affected sub-tree.
+     * NOTE: node namespaces are only up-to-date after the block returns.
+     */
+    @JRubyMethod
+    public IRubyObject batch(ThreadContext context, Block block) {
+        batchDepth++;
+        try {
+            return block.yield(context, this);
+        }
+        finally {
+            if (--batchDepth == 0) flushBatch(context);
+        }
+    }
+
+    final boolean inBatch() { return batchDepth > 0; }
+
+    final void batchRelink(XmlNode node) {
+        if (batchRelinks == null) batchRelinks = new ArrayList<XmlNode>();
+        batchRelinks.add(node);
+    }
+
+    final void batchResetNamespaceCache() { batchNamespaceCacheReset = true; }
+
+    private void flushBatch(ThreadContext context) {
+        final ArrayList<XmlNode> relinks = batchRelinks;
+        batchRelinks = null;
+        if (relinks != null) {
+            XmlNode.relinkNamespaces(context, getDocument(), relinks);
+            clearXpathContext(getDocument()); // elements might have been renamed
+        }
+        if (batchNamespaceCacheReset) {
+            batchNamespaceCacheReset = false;
+            resetNamespaceCache(context);
+        }
+    }
+
     @JRubyMethod(name="encoding=")
     public IRubyObject encoding_set(ThreadContext context, IRubyObject encoding) {
         this.encoding = encoding;
@@ -353,6 +430,7 @@ public class XmlDocument extends XmlNode {
 
     @JRubyMethod(name="remove_namespaces!")
     public IRubyObject remove_namespaces(ThreadContext context) {
+        NokogiriHelpers.checkModifiable(getNode());
         removeNamespceRecursively(context, this);
         nsCache.clear();
         clearXpathContext(getNode());
@@ -55,7 +55,9 @@ import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
 import org.jruby.util.ByteList;
 import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
 
 /**
  * Class for Nokogiri::XML::DocumentFragment
@@ -199,6 +201,10 @@ public class XmlDocumentFragment extends XmlNode {
 
     @Override
     public void relink_namespace(ThreadContext context) {
-        ((XmlNodeSet) children(context)).relink_namespace(context);
+        Node next;
+        for (Node child = node.getFirstChild(); child != null; child = next) {
+            if (child instanceof Element) child = relinkNamespaces(context, (Element) child);
+            next = child.getNextSibling();
+        }
     }
 }
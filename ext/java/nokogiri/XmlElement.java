@@ -35,7 +35,6 @@ package nokogiri;
 import nokogiri.internals.SaveContextVisitor;
 
 import org.jruby.Ruby;
-import org.jruby.RubyArray;
 import org.jruby.RubyClass;
 import org.jruby.anno.JRubyClass;
 import org.jruby.runtime.ThreadContext;
@@ -70,10 +69,10 @@ public class XmlElement extends XmlNode {
     public void accept(ThreadContext context, SaveContextVisitor visitor) {
         visitor.enter((Element) node);
         XmlNodeSet xmlNodeSet = (XmlNodeSet) children(context);
-        if (xmlNodeSet.length() > 0) {
-            RubyArray nodes = xmlNodeSet.nodes;
-            for( int i = 0; i < nodes.size(); i++ ) {
-                Object item = nodes.eltInternal(i);
+        final int length = xmlNodeSet.length();
+        if (length > 0) {
+            for( int i = 0; i < length; i++ ) {
+                Object item = xmlNodeSet.nodeAt(i);
                 if (item instanceof XmlNode) {
                     ((XmlNode) item).accept(context, visitor);
                 }
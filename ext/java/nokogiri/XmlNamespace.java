@@ -85,6 +85,7 @@ public class XmlNamespace extends RubyObject {
     void deleteHref() {
         hrefString = "http://www.w3.org/XML/1998/namespace";
         href = NokogiriHelpers.stringOrNil(getRuntime(), hrefString);
+        NokogiriHelpers.invalidateXpathContext(attr.getOwnerElement(), false);
         attr.getOwnerElement().removeAttributeNode(attr);
     }
 
@@ -103,6 +104,13 @@ public class XmlNamespace extends RubyObject {
     
     public static XmlNamespace createFromAttr(Ruby runtime, Attr attr) {
         String prefixValue = getLocalNameForNamespace(attr.getName());
+        String hrefValue = attr.getValue();
+        // check namespace cache
+        XmlDocument xmlDocument = (XmlDocument)getCachedNodeOrCreate(runtime, attr.getOwnerDocument());
+        xmlDocument.initializeNamespaceCacheIfNecessary();
+        XmlNamespace xmlNamespace = xmlDocument.getNamespaceCache().get(prefixValue == null ? "" : prefixValue, hrefValue);
+        if (xmlNamespace != null) return xmlNamespace;
+
         IRubyObject prefix_value;
         if (prefixValue == null) {
             prefix_value = runtime.getNil();
@@ -110,14 +118,8 @@ public class XmlNamespace extends RubyObject {
         } else {
             prefix_value = RubyString.newString(runtime, prefixValue);
         }
-        String hrefValue = attr.getValue();
         IRubyObject href_value = RubyString.newString(runtime, hrefValue);
-        // check namespace cache
-        XmlDocument xmlDocument = (XmlDocument)getCachedNodeOrCreate(runtime, attr.getOwnerDocument());
-        xmlDocument.initializeNamespaceCacheIfNecessary();
-        XmlNamespace xmlNamespace = xmlDocument.getNamespaceCache().get(prefixValue, hrefValue);
-        if (xmlNamespace != null) return xmlNamespace;
-        
+
         // creating XmlNamespace instance
         XmlNamespace namespace =
             (XmlNamespace) NokogiriService.XML_NAMESPACE_ALLOCATOR.allocate(runtime, getNokogiriClass(runtime, "Nokogiri::XML::Namespace")); 
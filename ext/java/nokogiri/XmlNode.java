@@ -34,8 +34,8 @@ package nokogiri;
 
 import static java.lang.Math.max;
 import static nokogiri.internals.NokogiriHelpers.getCachedNodeOrCreate;
-import static nokogiri.internals.NokogiriHelpers.clearCachedNode;
 import static nokogiri.internals.NokogiriHelpers.clearXpathContext;
+import static nokogiri.internals.NokogiriHelpers.invalidateXpathContext;
 import static nokogiri.internals.NokogiriHelpers.convertEncoding;
 import static nokogiri.internals.NokogiriHelpers.convertString;
 import static nokogiri.internals.NokogiriHelpers.getNokogiriClass;
@@ -50,22 +50,32 @@ import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import nokogiri.internals.HtmlDomParserContext;
+import nokogiri.internals.NokogiriEscaper;
 import nokogiri.internals.NokogiriHelpers;
+import nokogiri.internals.NokogiriLineNumbers;
 import nokogiri.internals.NokogiriNamespaceCache;
+import nokogiri.internals.NokogiriNodeCache;
 import nokogiri.internals.SaveContextVisitor;
 import nokogiri.internals.XmlDomParserContext;
 
 import org.apache.xerces.dom.CoreDocumentImpl;
+import org.jcodings.specific.UTF8Encoding;
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
 import org.jruby.RubyClass;
 import org.jruby.RubyInteger;
 import org.jruby.RubyFixnum;
 import org.jruby.RubyModule;
+import org.jruby.RubyNumeric;
 import org.jruby.RubyObject;
 import org.jruby.RubyString;
 import org.jruby.anno.JRubyClass;
@@ -193,6 +203,7 @@ public class XmlNode extends RubyObject {
         // apply the merge right to left
         if (shouldMergeN && n != null && n.getNodeType() == Node.TEXT_NODE) {
             xa.setContent(a.getNodeValue() + n.getNodeValue());
+            invalidateXpathContext(n, false);
             parent.removeChild(n);
             xn.assimilateXmlNode(context, xa);
         }
@@ -245,7 +256,7 @@ public class XmlNode extends RubyObject {
     }
 
     protected void resetCache() {
-        node.setUserData(NokogiriHelpers.CACHED_NODE, this, null);
+        NokogiriNodeCache.put(node, this);
     }
 
     /**
@@ -464,27 +475,104 @@ public class XmlNode extends RubyObject {
             return;
         }
 
-        // TODO: this feels kind of weird, why are we clearing the XmlNode
-        // cache here !!!
-        clearCachedNode(node);
-        Element e = (Element) node;
+        this.node = relinkNamespaces(context, (Element) node);
+        resetCache(); // the (renamed) node keeps its wrapper
+    }
+
+    /**
+     * Relinks namespaces of an element's sub-tree in a single (DOM) pass, without wrapping nodes.
+     * Namespaces are looked up (as DOM's <code>lookupNamespaceURI</code> does) through a scope per
+     * element, a scope remembers what its element's ancestors resolved.
+     * @param context
+     * @param root
+     * @return the relinked (and possibly replaced) root
+     */
+    static Node relinkNamespaces(ThreadContext context, Element root) {
+        return relinkNamespaces(context, root, null);
+    }
+
+    /**
+     * Relinks namespaces of (batched) adopted nodes, ancestors first. An element already
+     * relinked as part of an ancestor's sub-tree is not relinked again.
+     * @param context
+     * @param document the document nodes have been adopted to
+     * @param roots the adopted nodes (duplicates allowed)
+     */
+    static void relinkNamespaces(ThreadContext context, Document document, List<XmlNode> roots) {
+        final Set<Node> pending = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+        final IdentityHashMap<XmlNode, Integer> depths = new IdentityHashMap<XmlNode, Integer>();
+        final ArrayList<XmlNode> sorted = new ArrayList<XmlNode>(roots.size());
+        for (XmlNode root : roots) {
+            // might have been moved (to another document) later on
+            if (!(root.node instanceof Element) || root.node.getOwnerDocument() != document) continue;
+            if (!pending.add(root.node)) continue;
+            int depth = 0;
+            for (Node n = root.node.getParentNode(); n != null; n = n.getParentNode()) depth++;
+            depths.put(root, depth); sorted.add(root);
+        }
+        Collections.sort(sorted, new Comparator<XmlNode>() {
+            public int compare(XmlNode n1, XmlNode n2) {
+                return depths.get(n1).compareTo(depths.get(n2));
+            }
+        });
+        for (XmlNode root : sorted) {
+            if (!pending.contains(root.node)) continue;
+            root.node = relinkNamespaces(context, (Element) root.node, pending);
+            root.resetCache(); // the (renamed) node keeps its wrapper
+        }
+    }
 
+    private static Node relinkNamespaces(ThreadContext context, Element root, final Set<Node> pending) {
         // disable error checking to prevent lines like the following
         // from throwing a `NAMESPACE_ERR' exception:
         // Nokogiri::XML::DocumentFragment.parse("<o:div>a</o:div>")
         // since the `o' prefix isn't defined anywhere.
-        e.getOwnerDocument().setStrictErrorChecking(false);
+        root.getOwnerDocument().setStrictErrorChecking(false);
+
+        if (pending != null) pending.remove(root);
+        final NamespaceScope outerScope = new NamespaceScope(elementAncestor(root));
+        final Node relinkedRoot = relinkNamespace(context, root, outerScope);
+
+        final ArrayList<Element> elements = new ArrayList<Element>();
+        final ArrayList<NamespaceScope> scopes = new ArrayList<NamespaceScope>();
+        pushChildElements(relinkedRoot, outerScope, elements, scopes);
+        while (!elements.isEmpty()) {
+            final int last = elements.size() - 1;
+            final Element e = elements.remove(last);
+            final NamespaceScope scope = scopes.remove(last);
+            if (pending != null) pending.remove(e);
+            final Node relinked = relinkNamespace(context, e, scope);
+            pushChildElements(relinked, scope, elements, scopes);
+        }
+        return relinkedRoot;
+    }
+
+    private static void pushChildElements(final Node parent, final NamespaceScope parentScope,
+        final ArrayList<Element> elements, final ArrayList<NamespaceScope> scopes) {
+        if (parent.getNamespaceURI() == null || parent.getNamespaceURI().length() == 0) {
+            return; // relinking stops at elements with no namespace
+        }
+        final int size = elements.size();
+        NamespaceScope scope = null;
+        for (Node child = parent.getLastChild(); child != null; child = child.getPreviousSibling()) {
+            if (child instanceof Element) {
+                if (scope == null) scope = new NamespaceScope((Element) parent, parentScope);
+                elements.add((Element) child); scopes.add(scope);
+            }
+        }
+    }
 
+    private static Node relinkNamespace(ThreadContext context, final Element e, final NamespaceScope scope) {
         String prefix = e.getPrefix();
-        String nsURI = e.lookupNamespaceURI(prefix);
-        this.node = NokogiriHelpers.renameNode(e, nsURI, e.getNodeName());
+        String nsURI = scope.lookupNamespaceURI(e, prefix);
+        final Element relinked = (Element) renameNode(e, nsURI, e.getNodeName());
 
         if (nsURI == null || nsURI.isEmpty()) {
-            return;
+            return relinked;
         }
 
-        if (e.hasAttributes()) {
-            NamedNodeMap attrs = e.getAttributes();
+        if (relinked.hasAttributes()) {
+            NamedNodeMap attrs = relinked.getAttributes();
 
             for (int i = 0; i < attrs.getLength(); i++) {
                 Attr attr = (Attr) attrs.item(i);
@@ -499,10 +587,10 @@ public class XmlNode extends RubyObject {
                 } else if ("xmlns".equals(attrPrefix) || nodeName.equals("xmlns")) {
                     nsUri = "http://www.w3.org/2000/xmlns/";
                 } else {
-                    nsUri = attr.lookupNamespaceURI(attrPrefix);
+                    nsUri = scope.lookupNamespaceURI(relinked, attrPrefix);
                 }
 
-                if (nsUri == e.getNamespaceURI()) {
+                if (nsUri == relinked.getNamespaceURI()) {
                     nsUri = null;
                 }
 
@@ -512,25 +600,103 @@ public class XmlNode extends RubyObject {
                     // TODO: why do we need the namespace cache ?
                     XmlNamespace.createFromAttr(context.getRuntime(), attr);
                 }
-                clearCachedNode(attr);
-                NokogiriHelpers.renameNode(attr, nsUri, nodeName);
+                renameNode(attr, nsUri, nodeName);
+            }
+        }
+        return relinked;
+    }
+
+    // rename, a wrapper of a replaced node wraps the replacement
+    private static Node renameNode(final Node node, final String namespaceURI, final String qualifiedName) {
+        final Node renamed = NokogiriHelpers.renameNode(node, namespaceURI, qualifiedName);
+        if (renamed != node) {
+            final XmlNode wrapper = NokogiriHelpers.getCachedNode(renamed);
+            if (wrapper != null) wrapper.node = renamed;
+        }
+        return renamed;
+    }
+
+    private static Element elementAncestor(Node node) {
+        for (node = node.getParentNode(); node != null; node = node.getParentNode()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE) return (Element) node;
+        }
+        return null;
+    }
+
+    /**
+     * Namespace URIs as resolved from (the current state of) an element and its ancestors.
+     */
+    private static final class NamespaceScope {
+
+        private static final String NOT_DECLARED = new String();
+        private static final String NULL = new String();
+
+        private final Element element;
+        private final NamespaceScope parent;
+        private final Element outer; // nearest element outside of the relinked sub-tree
+        private HashMap<String, String> resolved;
+
+        NamespaceScope(final Element outer) { // scope of the relinked root's ancestors
+            this.element = null; this.parent = null; this.outer = outer;
+        }
+
+        NamespaceScope(final Element element, final NamespaceScope parent) {
+            this.element = element; this.parent = parent; this.outer = null;
+        }
+
+        // what e.lookupNamespaceURI(prefix) returns, with e's ancestors resolved by this scope
+        String lookupNamespaceURI(final Element e, final String prefix) {
+            final String uri = declaredNamespaceURI(e, prefix);
+            return uri == NOT_DECLARED ? lookup(prefix) : uri;
+        }
+
+        private String lookup(final String prefix) {
+            if (resolved == null) resolved = new HashMap<String, String>(8);
+            String uri = resolved.get(prefix);
+            if (uri == null) {
+                if (element == null) {
+                    uri = outer == null ? null : outer.lookupNamespaceURI(prefix);
+                } else {
+                    uri = declaredNamespaceURI(element, prefix);
+                    if (uri == NOT_DECLARED) uri = parent == null ? null : parent.lookup(prefix);
+                }
+                resolved.put(prefix, uri == null ? NULL : uri);
+                return uri;
             }
+            return uri == NULL ? null : uri;
         }
 
-        if (this.node.hasChildNodes()) {
-            XmlNodeSet nodeSet = (XmlNodeSet)(children(context));
-            nodeSet.relink_namespace(context);
+        private static String declaredNamespaceURI(final Element e, final String prefix) {
+            final String namespace = e.getNamespaceURI();
+            if (namespace != null) {
+                final String ePrefix = e.getPrefix();
+                if (prefix == null ? ePrefix == null : prefix.equals(ePrefix)) return namespace;
+            }
+            if (e.hasAttributes()) {
+                final NamedNodeMap attrs = e.getAttributes();
+                for (int i = 0; i < attrs.getLength(); i++) {
+                    final Node attr = attrs.item(i);
+                    if (!NokogiriHelpers.XMLNS_URI.equals(attr.getNamespaceURI())) continue;
+                    final String value = attr.getNodeValue();
+                    if (prefix == null ? "xmlns".equals(attr.getNodeName()) :
+                        "xmlns".equals(attr.getPrefix()) && prefix.equals(attr.getLocalName())) {
+                        return value.length() > 0 ? value : null;
+                    }
+                }
+            }
+            return NOT_DECLARED;
         }
+
     }
 
     // Users might extend XmlNode. This method works for such a case.
     public void accept(ThreadContext context, SaveContextVisitor visitor) {
         visitor.enter(node);
         XmlNodeSet xmlNodeSet = (XmlNodeSet) children(context);
-        if (xmlNodeSet.length() > 0) {
-            RubyArray array = (RubyArray) xmlNodeSet.to_a(context);
-            for(int i = 0; i < array.getLength(); i++) {
-                Object item = array.get(i);
+        final int length = xmlNodeSet.length();
+        if (length > 0) {
+            for(int i = 0; i < length; i++) {
+                Object item = xmlNodeSet.nodeAt(i);
                 if (item instanceof XmlNode) {
                   XmlNode cur = (XmlNode) item;
                   cur.accept(context, visitor);
@@ -583,6 +749,7 @@ public class XmlNode extends RubyObject {
                 && oldPrefix.equals(rubyStringToString(ns.prefix(context))));
 
         if(update) {
+            invalidateXpathContext(this.node, false);
             this.node = NokogiriHelpers.renameNode(this.node, uri, this.node.getNodeName());
         }
     }
@@ -637,13 +804,14 @@ public class XmlNode extends RubyObject {
             String qName =
                 prefix.isNil() ? "xmlns" : "xmlns:" + prefixString;
 
+            invalidateXpathContext(element, false);
             element.setAttributeNS(uri, qName, hrefString);
         }
         else if (node.getNodeType() == Node.ATTRIBUTE_NODE) namespaceOwner = ((Attr)node).getOwnerElement();
         else namespaceOwner = node.getParentNode();
         XmlNamespace ns = XmlNamespace.createFromPrefixAndHref(namespaceOwner, prefix, href);
         if (node != namespaceOwner) {
-
+            invalidateXpathContext(node, false);
             this.node = NokogiriHelpers.renameNode(node, ns.getHref(), ns.getPrefix() + ":" + node.getLocalName());
         }
         updateNodeNamespaceIfNecessary(context, ns);
@@ -884,45 +1052,99 @@ public class XmlNode extends RubyObject {
 
     @JRubyMethod(name = {"content", "text", "inner_text"})
     public IRubyObject content(ThreadContext context) {
-        return stringOrNil(context.getRuntime(), getContentImpl());
+        return getContent(context.runtime, node, -1);
+    }
+
+    /**
+     * Text content, cut off after the given number of characters (e.g. for previews).
+     */
+    @JRubyMethod
+    public IRubyObject content_preview(ThreadContext context, IRubyObject length) {
+        final int limit = RubyNumeric.num2int(length);
+        if (limit < 0) throw context.runtime.newArgumentError("negative length " + limit);
+        return getContent(context.runtime, node, limit);
     }
 
     public CharSequence getContentImpl() {
-        if (!node.hasChildNodes() && node.getNodeValue() == null &&
-            (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE)) {
-            return null;
-        }
-        CharSequence textContent;
-        if (this instanceof XmlDocument) {
-            Node node = ((Document)this.node).getDocumentElement();
-            if (node == null) {
-                textContent = "";
-            } else {
-                Node documentElement = ((Document) this.node).getDocumentElement();
-                textContent = getTextContentRecursively(new StringBuilder(), documentElement);
-            }
-        } else {
-            textContent = getTextContentRecursively(new StringBuilder(), node);
+        return getContentImpl(node);
+    }
+
+    /**
+     * The text content of a (DOM) node, same as a wrapping node's {@link #getContentImpl()}.
+     * @param node the DOM node
+     * @return text content (or null e.g. for an empty text node)
+     */
+    static CharSequence getContentImpl(final Node node) {
+        if (isEmptyText(node)) return null;
+        final Node start = contentStart(node);
+        final StringBuilder buffer = new StringBuilder();
+        for (Node n = start; n != null; n = nextContentNode(start, n)) {
+            CharSequence textContent = n.getNodeValue();
+            if (textContent == null) continue;
+            if (isEncoded(n, textContent)) textContent = NokogiriHelpers.decodeJavaString(textContent);
+            buffer.append(textContent);
         }
         // textContent = NokogiriHelpers.convertEncodingByNKFIfNecessary(context, (XmlDocument) document(context), textContent);
-        return textContent;
+        return buffer;
     }
 
-    private StringBuilder getTextContentRecursively(StringBuilder buffer, Node currentNode) {
-        CharSequence textContent = currentNode.getNodeValue();
-        if (textContent != null && NokogiriHelpers.shouldDecode(currentNode)) {
-            textContent = NokogiriHelpers.decodeJavaString(textContent);
+    /**
+     * The text content of a (DOM) node as a Ruby (UTF-8) string, written in a single pass.
+     * @param runtime
+     * @param node the DOM node
+     * @param limit max number of characters, negative for all of the text
+     * @return text content (or nil e.g. for an empty text node)
+     */
+    static IRubyObject getContent(final Ruby runtime, final Node node, final int limit) {
+        if (isEmptyText(node)) return runtime.getNil();
+        final Node start = contentStart(node);
+        final ByteList bytes = new ByteList(32);
+        bytes.setEncoding(UTF8Encoding.INSTANCE);
+        int remaining = limit;
+        for (Node n = start; n != null && remaining != 0; n = nextContentNode(start, n)) {
+            final String textContent = n.getNodeValue();
+            if (textContent == null) continue;
+            remaining -= NokogiriHelpers.writeUTF8(bytes, textContent, isEncoded(n, textContent), remaining);
         }
-        if (textContent != null) buffer.append(textContent);
-        NodeList children = currentNode.getChildNodes();
-        for (int i = 0; i < children.getLength(); i++) {
-            Node child = children.item(i);
-            if (hasTextContent(child)) getTextContentRecursively(buffer, child);
+        return RubyString.newString(runtime, bytes);
+    }
+
+    private static boolean isEmptyText(final Node node) {
+        return !node.hasChildNodes() && node.getNodeValue() == null &&
+            (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE);
+    }
+
+    private static Node contentStart(final Node node) {
+        if (node.getNodeType() == Node.DOCUMENT_NODE) {
+            return ((Document) node).getDocumentElement(); // no content if null
         }
-        return buffer;
+        return node;
     }
 
-    private boolean hasTextContent(Node child) {
+    // (document order) next node of the sub-tree, whose value is part of the text content
+    private static Node nextContentNode(final Node start, Node node) {
+        if (node.getNodeType() != Node.ATTRIBUTE_NODE) { // attribute children are its value
+            for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (hasTextContent(child)) return child;
+            }
+        }
+        for (; node != start; node = node.getParentNode()) {
+            for (Node sibling = node.getNextSibling(); sibling != null; sibling = sibling.getNextSibling()) {
+                if (hasTextContent(sibling)) return sibling;
+            }
+        }
+        return null;
+    }
+
+    // only decode if there's something to decode (avoids looking up the node's user data)
+    private static boolean isEncoded(final Node node, final CharSequence textContent) {
+        for (int i = 0; i < textContent.length(); i++) {
+            if (textContent.charAt(i) == '&') return NokogiriHelpers.shouldDecode(node);
+        }
+        return false;
+    }
+
+    private static boolean hasTextContent(Node child) {
         return child.getNodeType() != Node.COMMENT_NODE && child.getNodeType() != Node.PROCESSING_INSTRUCTION_NODE;
     }
 
@@ -932,12 +1154,8 @@ public class XmlNode extends RubyObject {
     }
 
     IRubyObject document(final Ruby runtime) {
-        if (doc == null) {
-            doc = (XmlDocument) node.getOwnerDocument().getUserData(NokogiriHelpers.CACHED_NODE);
-        }
         if (doc == null) {
             doc = getCachedNodeOrCreate(runtime, node.getOwnerDocument());
-            node.getOwnerDocument().setUserData(NokogiriHelpers.CACHED_NODE, doc, null);
         }
         return doc;
     }
@@ -974,7 +1192,7 @@ public class XmlNode extends RubyObject {
     }
 
     public static RubyString encode_special_chars(ThreadContext context, IRubyObject string) {
-        CharSequence str = NokogiriHelpers.encodeJavaString( rubyStringToString(string) );
+        CharSequence str = NokogiriEscaper.TEXT.escape( rubyStringToString(string) );
         return RubyString.newString(context.getRuntime(), str);
     }
 
@@ -1213,7 +1431,10 @@ public class XmlNode extends RubyObject {
 
     protected void setContent(IRubyObject content) {
         String javaContent = rubyStringToString(content);
+        final boolean element = node.getNodeType() == Node.ELEMENT_NODE;
+        if (element) invalidateXpathContext(node.getFirstChild(), false);
         node.setTextContent(javaContent);
+        if (element) invalidateXpathContext(node.getFirstChild(), true);
         if (javaContent == null || javaContent.length() == 0) return;
         if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) return;
         if (node.getFirstChild() != null) {
@@ -1320,6 +1541,7 @@ public class XmlNode extends RubyObject {
     @JRubyMethod(name = {"node_name=", "name="})
     public IRubyObject node_name_set(ThreadContext context, IRubyObject nodeName) {
         String newName = rubyStringToString(nodeName);
+        invalidateXpathContext(node, false);
         this.node = NokogiriHelpers.renameNode(node, null, newName);
         setName(nodeName);
         return this;
@@ -1351,12 +1573,16 @@ public class XmlNode extends RubyObject {
             }
         }
 
+        // updating the value of an existing attribute does not change the tree
+        if (element.getAttributeNode(key) == null || key.startsWith("xmlns")) {
+            invalidateXpathContext(element, false);
+        }
+
         if (uri != null) {
             element.setAttributeNS(uri, key, val);
         } else {
             element.setAttribute(key, val);
         }
-        clearXpathContext(node);
     }
 
     private String findNamespaceHref(ThreadContext context, String prefix) {
@@ -1405,6 +1631,8 @@ public class XmlNode extends RubyObject {
 
     @JRubyMethod(visibility=Visibility.PRIVATE)
     public IRubyObject set_namespace(ThreadContext context, IRubyObject namespace) {
+        invalidateXpathContext(node, false);
+
         if (namespace.isNil()) {
             if (doc != null) {
                 Node n = node;
@@ -1430,8 +1658,6 @@ public class XmlNode extends RubyObject {
             this.node = NokogiriHelpers.renameNode(node, href, new_name);
         }
 
-        clearXpathContext(getNode());
-
         return this;
     }
 
@@ -1439,8 +1665,8 @@ public class XmlNode extends RubyObject {
     public IRubyObject unlink(ThreadContext context) {
         final Node parent = node.getParentNode();
         if (parent != null) {
+            invalidateXpathContext(node, false);
             parent.removeChild(node);
-            clearXpathContext(parent);
         }
         return this;
     }
@@ -1489,6 +1715,9 @@ public class XmlNode extends RubyObject {
 
     @JRubyMethod
     public IRubyObject line(ThreadContext context) {
+        final int line = NokogiriLineNumbers.getLine(node);
+        if (line > 0) return context.runtime.newFixnum(line);
+        // node not parsed from source, guess from the new-lines preceding it
         Node root = getOwnerDocument();
         int[] counter = new int[1];
         count(root, counter);
@@ -1555,12 +1784,23 @@ public class XmlNode extends RubyObject {
         IRubyObject nodeOrTags = other;
         Node thisNode = node;
         Node otherNode = other.node;
+        Node insertionParent = null, insertionPrev = null;
+
+        // within a batch fix-ups are deferred, XPath contexts are simply dropped
+        final XmlDocument batch = (this.doc instanceof XmlDocument && ((XmlDocument) this.doc).inBatch()) ?
+            (XmlDocument) this.doc : null;
 
+        NokogiriHelpers.checkModifiable(thisNode);
          try {
             Document prev = otherNode.getOwnerDocument();
             Document doc = thisNode.getOwnerDocument();
-            clearXpathContext(prev);
-            clearXpathContext(doc);
+            if (batch != null) {
+                clearXpathContext(otherNode);
+                clearXpathContext(thisNode);
+            } else {
+                invalidateXpathContext(otherNode, false);
+                if (scheme == AdoptScheme.REPLACEMENT) invalidateXpathContext(thisNode, false);
+            }
             if (doc != null && doc != otherNode.getOwnerDocument()) {
                 Node ret = doc.adoptNode(otherNode);
                 // FIXME: this is really a hack, see documentation of fixUserData() for more details.
@@ -1568,11 +1808,24 @@ public class XmlNode extends RubyObject {
                 if (ret == null) {
                     throw context.getRuntime().newRuntimeError("Failed to take ownership of node");
                 }
+                // wrappers of the adopted sub-tree move along (and belong to the new document)
+                for (XmlNode wrapper : NokogiriNodeCache.adopted(prev, ret)) {
+                    if (wrapper != other && this.doc != null) wrapper.setDocument(context, this.doc);
+                }
+                NokogiriLineNumbers.adopted(prev, ret);
                 otherNode = ret;
             }
 
             Node parent = thisNode.getParentNode();
 
+            // remember the insertion point, XPath context is told about the new node(s) afterwards
+            if (scheme == AdoptScheme.CHILD) {
+                insertionParent = thisNode; insertionPrev = thisNode.getLastChild();
+            } else if (parent != null) {
+                insertionParent = parent;
+                insertionPrev = (scheme == AdoptScheme.NEXT_SIBLING) ? thisNode : thisNode.getPreviousSibling();
+            }
+
             switch (scheme) {
             case CHILD:
                 Node[] children = adoptAsChild(context, thisNode, otherNode);
@@ -1600,6 +1853,13 @@ public class XmlNode extends RubyObject {
             coalesceTextNodes(context, other, scheme);
         }
 
+        if (batch != null) {
+            if (this instanceof XmlDocument) batch.batchResetNamespaceCache();
+            if (other.node instanceof Element) batch.batchRelink(other);
+            else other.relink_namespace(context);
+            return nodeOrTags;
+        }
+
         if (this instanceof XmlDocument) {
             ((XmlDocument) this).resetNamespaceCache(context);
         }
@@ -1607,6 +1867,14 @@ public class XmlNode extends RubyObject {
         other.relink_namespace(context);
         // post_add_child(context, this, other);
 
+        if (insertionParent != null) {
+            Node first = (insertionPrev == null) ? insertionParent.getFirstChild() : insertionPrev.getNextSibling();
+            invalidateXpathContext(first, true);
+            if (other.node != first && other.node.getParentNode() != null) {
+                invalidateXpathContext(other.node, true);
+            }
+        }
+
         return nodeOrTags;
     }
 
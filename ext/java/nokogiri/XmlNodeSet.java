@@ -34,33 +34,70 @@ package nokogiri;
 
 import static nokogiri.XmlNode.setDocumentAndDecorate;
 import static nokogiri.internals.NokogiriHelpers.getNokogiriClass;
-import static nokogiri.internals.NokogiriHelpers.nodeListToRubyArray;
-
-import java.util.List;
+import static nokogiri.internals.NokogiriHelpers.getCachedNodeOrCreate;
+import static nokogiri.internals.NokogiriHelpers.isNamespace;
+import static nokogiri.internals.NokogiriHelpers.convertString;
+import static nokogiri.internals.NokogiriHelpers.getCachedNode;
+import static nokogiri.internals.NokogiriHelpers.rubyStringToString;
+import static nokogiri.internals.NokogiriHelpers.stringOrNil;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+import org.apache.xml.dtm.DTM;
+import org.apache.xml.dtm.DTMIterator;
+import org.apache.xml.dtm.ref.DTMDefaultBase;
+import org.apache.xml.dtm.ref.DTMNodeList;
+import org.apache.xml.dtm.ref.dom2dtm.DOM2DTMExt;
+import org.apache.xml.dtm.ref.dom2dtm.DOM2DTMdefaultNamespaceDeclarationNode;
+import nokogiri.internals.NokogiriHelpers;
+import nokogiri.internals.SaveContextVisitor;
 
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
 import org.jruby.RubyClass;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyNumeric;
 import org.jruby.RubyObject;
+import org.jruby.RubyRange;
 import org.jruby.anno.JRubyClass;
 import org.jruby.anno.JRubyMethod;
-import org.jruby.runtime.Block;
 import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.Visibility;
 import org.jruby.runtime.builtin.IRubyObject;
+import org.w3c.dom.Attr;
+import org.w3c.dom.CDATASection;
+import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 /**
  * Class for Nokogiri::XML::NodeSet
  *
+ * Members are kept as raw DOM nodes, Ruby (node or namespace) wrappers are only
+ * created once a member is handed out to Ruby.
+ *
+ * Set operations (&amp;, |, -) de-duplicate on node identity and return members in
+ * document order, merging DTM node handles when both sets are results from the same DTM.
+ *
  * @author sergio
  * @author Yoko Harada <yokolet@gmail.com>
  */
 @JRubyClass(name="Nokogiri::XML::NodeSet")
 public class XmlNodeSet extends RubyObject implements NodeList {
 
-    RubyArray nodes;
-    
+    private static final Node[] NO_NODES = new Node[0];
+
+    private Node[] nodes = NO_NODES;
+    private int size;
+    // lazily allocated, holds the (Ruby) wrapper of a member once it's been accessed
+    private IRubyObject[] wrappers;
+    // optional, DTM node handles (of the XPath result) - all from the same handlesDTM
+    private int[] handles;
+    private DTM handlesDTM;
+
     public XmlNodeSet(Ruby ruby, RubyClass klazz) {
         super(ruby, klazz);
     }
@@ -94,20 +131,73 @@ public class XmlNodeSet extends RubyObject implements NodeList {
     }
 
     void setNodes(RubyArray array) {
-        this.nodes = array;
+        final int length = array.size();
+        this.nodes = new Node[length];
+        this.wrappers = new IRubyObject[length];
+        this.handles = null; this.handlesDTM = null;
+        for (int i = 0; i < length; i++) {
+            final IRubyObject node = array.eltInternal(i);
+            this.nodes[i] = toNode(node);
+            this.wrappers[i] = node;
+        }
+        this.size = length;
 
-        IRubyObject first = array.first();
-        initialize(array.getRuntime(), first);
+        initialize(array.getRuntime(), length > 0 ? wrappers[0] : null);
     }
 
     private void setReference(XmlNodeSet reference) {
-        this.nodes = null;
-        IRubyObject first = reference.nodes.first();
-        initialize(reference.getRuntime(), first);
+        IRubyObject doc = reference.getDocument();
+        if (doc == null) doc = getDocument();
+        if (doc != null) setDocumentAndDecorate(getRuntime().getCurrentContext(), this, doc);
+    }
+
+    // @document or the document of the first node member
+    private IRubyObject getDocument() {
+        final IRubyObject doc = getInstanceVariable("@document");
+        if (doc != null && !doc.isNil()) return doc;
+        for (int i = 0; i < size; i++) {
+            final IRubyObject node = nodeAt(i);
+            if (node instanceof XmlNode) return ((XmlNode) node).document(getRuntime());
+        }
+        return null;
     }
-    
+
     public void setNodeList(NodeList nodeList) {
-        setNodes(nodeListToRubyArray(getRuntime(), nodeList));
+        setNodeList(nodeList, null);
+    }
+
+    /**
+     * Sets the node-set content, nodes are only wrapped once accessed.
+     * @param nodeList the DOM nodes (copied)
+     * @param refNode to initialize the document from, if null the first node is used
+     */
+    public void setNodeList(NodeList nodeList, IRubyObject refNode) {
+        final int length = nodeList.getLength();
+        final Node[] nodes = new Node[length];
+        int[] handles = null; DTM handlesDTM = null;
+        if (nodeList instanceof DTMNodeList) { // XPath result
+            final DTMIterator iter = ((DTMNodeList) nodeList).getDTMIterator();
+            handles = new int[length];
+            for (int i = 0; i < length; i++) {
+                final int handle = handles[i] = iter.item(i);
+                final DTM dtm = iter.getDTM(handle);
+                if (i == 0) handlesDTM = dtm;
+                else if (handlesDTM != dtm) handlesDTM = null;
+                nodes[i] = dtm.getNode(handle);
+            }
+            if (handlesDTM == null) handles = null;
+        }
+        else {
+            for (int i = 0; i < length; i++) nodes[i] = nodeList.item(i);
+        }
+
+        this.nodes = nodes;
+        this.size = length;
+        this.wrappers = null;
+        this.handles = handles; this.handlesDTM = handlesDTM;
+
+        if (refNode == null && length > 0) refNode = nodeAt(0);
+        initialize(getRuntime(), refNode);
     }
 
     final void initialize(Ruby runtime, IRubyObject refNode) {
@@ -117,112 +207,534 @@ public class XmlNodeSet extends RubyObject implements NodeList {
         }
     }
 
-    public int length() {
-        if (nodes == null) return 0;
-        return nodes.size();
+    // wraps the node at the given (valid) index
+    IRubyObject nodeAt(final int index) {
+        if (wrappers == null) wrappers = new IRubyObject[nodes.length];
+        IRubyObject node = wrappers[index];
+        if (node == null) {
+            node = wrappers[index] = getCachedNodeOrCreate(getRuntime(), nodes[index]);
+        }
+        return node;
+    }
+
+    // identity of a member: the DOM node, except for namespaces (there might be no node)
+    private Object keyAt(final int index) {
+        final Node node = nodes[index];
+        if (node == null || isNamespaceNode(node)) return nodeAt(index);
+        return node;
+    }
+
+    private static Object toKey(IRubyObject node_or_namespace) {
+        if (node_or_namespace instanceof XmlNode) {
+            final Node node = ((XmlNode) node_or_namespace).node;
+            if (node != null && !isNamespaceNode(node)) return node;
+        }
+        return node_or_namespace;
+    }
+
+    private static boolean isNamespaceNode(final Node node) {
+        return node.getNodeType() == Node.ATTRIBUTE_NODE && isNamespace(node.getNodeName());
+    }
+
+    private static Node toNode(IRubyObject node_or_namespace) {
+        if (node_or_namespace instanceof XmlNode) return ((XmlNode) node_or_namespace).node;
+        if (node_or_namespace instanceof XmlNamespace) return ((XmlNamespace) node_or_namespace).getNode();
+        return null;
+    }
+
+    private int indexOf(final Object key) {
+        for (int i = 0; i < size; i++) {
+            if (keyAt(i) == key) return i;
+        }
+        return -1;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > nodes.length) {
+            final int newLength = Math.max(capacity, nodes.length + (nodes.length >> 1) + 4);
+            nodes = Arrays.copyOf(nodes, newLength);
+            if (wrappers != null) wrappers = Arrays.copyOf(wrappers, newLength);
+            if (handles != null) handles = Arrays.copyOf(handles, newLength);
+        }
+    }
+
+    // appends the member at index of the given set (no uniqueness check)
+    private void add(final XmlNodeSet set, final int index) {
+        if (size == 0 && set.handles != null) { // handles are kept as long as all come from the same DTM
+            handlesDTM = set.handlesDTM; handles = new int[nodes.length];
+        }
+        ensureCapacity(size + 1);
+        nodes[size] = set.nodes[index];
+        final IRubyObject wrapper = set.wrappers == null ? null : set.wrappers[index];
+        if (wrapper != null) {
+            if (wrappers == null) wrappers = new IRubyObject[nodes.length];
+            wrappers[size] = wrapper;
+        }
+        if (handles != null) {
+            if (set.handles != null && set.handlesDTM == handlesDTM) handles[size] = set.handles[index];
+            else { handles = null; handlesDTM = null; }
+        }
+        size++;
+    }
+
+    private static DTMDefaultBase liveDTM(final DTM dtm) {
+        if (dtm instanceof DOM2DTMExt && !((DOM2DTMExt) dtm).isReleased()) return (DTMDefaultBase) dtm;
+        return null;
+    }
+
+    /**
+     * @param dtm the (live) DTM
+     * @return node identities of all members if they're from the given DTM, unique and
+     * in document order, null otherwise
+     */
+    private int[] documentOrderIdentities(final DTMDefaultBase dtm) {
+        if (handles == null || handlesDTM != dtm) return null;
+        final int[] idents = new int[size];
+        int prev = DTM.NULL;
+        for (int i = 0; i < size; i++) {
+            if (nodes[i] == null || isNamespaceNode(nodes[i])) return null; // identity is the namespace wrapper
+            final int ident = idents[i] = dtm.makeNodeIdentity(handles[i]);
+            if (ident <= prev) return null;
+            prev = ident;
+        }
+        return idents;
+    }
+
+    private static Node orderedNode(final Node node) {
+        if (node == null) return null;
+        if (node instanceof DOM2DTMdefaultNamespaceDeclarationNode || isNamespaceNode(node)) {
+            return ((Attr) node).getOwnerElement(); // namespace nodes are ordered with their element
+        }
+        return node;
     }
 
-    public void relink_namespace(ThreadContext context) {
-        List<?> n = nodes.getList();
+    private static Node treeRoot(Node node) {
+        if (node.getNodeType() == Node.ATTRIBUTE_NODE) {
+            final Node owner = ((Attr) node).getOwnerElement();
+            if (owner == null) return node;
+            node = owner;
+        }
+        for (Node parent = node.getParentNode(); parent != null; parent = parent.getParentNode()) node = parent;
+        return node;
+    }
 
-        for (int i = 0; i < n.size(); i++) {
-            if (n.get(i) instanceof XmlNode) {
-                ((XmlNode) n.get(i)).relink_namespace(context);
+    private static int ordinal(final IdentityHashMap<Node, Integer> ordinals, final Node node) {
+        Integer ordinal = ordinals.get(node);
+        if (ordinal == null) ordinals.put(node, ordinal = ordinals.size());
+        return ordinal;
+    }
+
+    private static int compare(final Node[] ordered, final int[] docs, final int[] trees, final int i1, final int i2) {
+        if (docs[i1] != docs[i2]) return docs[i1] < docs[i2] ? -1 : 1;
+        if (trees[i1] != trees[i2]) return trees[i1] < trees[i2] ? -1 : 1;
+        final Node node1 = ordered[i1], node2 = ordered[i2];
+        if (node1 == node2 || node1 == null) return 0;
+        final short position = node1.compareDocumentPosition(node2);
+        return (position & Node.DOCUMENT_POSITION_FOLLOWING) != 0 ? -1 : 1;
+    }
+
+    // sorts members in document order, using DTM node identities when all come from a live DTM (the DOM otherwise)
+    private void sortInDocumentOrder() {
+        if (size < 2) return;
+        final DTMDefaultBase dtm = handles == null ? null : liveDTM(handlesDTM);
+        final int[] order = new int[size];
+        if (dtm != null) {
+            final long[] keys = new long[size];
+            boolean sorted = true;
+            for (int i = 0; i < size; i++) {
+                keys[i] = ((long) dtm.makeNodeIdentity(handles[i]) << 32) | i;
+                if (i > 0 && keys[i] < keys[i - 1]) sorted = false;
+            }
+            if (sorted) return;
+            Arrays.sort(keys);
+            for (int i = 0; i < size; i++) order[i] = (int) keys[i];
+        }
+        else { // order using the DOM : documents as first seen, a document's detached trees after its nodes (in insertion order)
+            final Node[] ordered = new Node[size];
+            final int[] docs = new int[size], trees = new int[size];
+            final IdentityHashMap<Node, Integer> ordinals = new IdentityHashMap<Node, Integer>(4);
+            for (int i = 0; i < size; i++) {
+                final Node node = ordered[i] = orderedNode(nodes[i]);
+                if (node == null) {
+                    docs[i] = Integer.MAX_VALUE; // namespaces without a node go last
+                }
+                else {
+                    final Node doc = node.getOwnerDocument() == null ? node : node.getOwnerDocument();
+                    final Node root = treeRoot(node);
+                    docs[i] = ordinal(ordinals, doc);
+                    trees[i] = root == doc ? -1 : ordinal(ordinals, root);
+                }
+            }
+            boolean sorted = true;
+            for (int i = 1; i < size; i++) {
+                if (compare(ordered, docs, trees, i - 1, i) > 0) { sorted = false; break; }
             }
+            if (sorted) return;
+            final Integer[] indexes = new Integer[size];
+            for (int i = 0; i < size; i++) indexes[i] = i;
+            Arrays.sort(indexes, new Comparator<Integer>() { // stable
+                public int compare(Integer i1, Integer i2) {
+                    return XmlNodeSet.compare(ordered, docs, trees, i1, i2);
+                }
+            });
+            for (int i = 0; i < size; i++) order[i] = indexes[i];
         }
+        final Node[] sortedNodes = new Node[nodes.length];
+        final IRubyObject[] sortedWrappers = wrappers == null ? null : new IRubyObject[nodes.length];
+        final int[] sortedHandles = handles == null ? null : new int[nodes.length];
+        for (int i = 0; i < size; i++) {
+            final int j = order[i];
+            sortedNodes[i] = nodes[j];
+            if (sortedWrappers != null) sortedWrappers[i] = wrappers[j];
+            if (sortedHandles != null) sortedHandles[i] = handles[j];
+        }
+        nodes = sortedNodes; wrappers = sortedWrappers; handles = sortedHandles;
+    }
+
+    private XmlNodeSet subSet(ThreadContext context, final int begin, final int length) {
+        final XmlNodeSet xmlNodeSet = newXmlNodeSet(context, this);
+        xmlNodeSet.nodes = Arrays.copyOfRange(nodes, begin, begin + length);
+        if (wrappers != null) xmlNodeSet.wrappers = Arrays.copyOfRange(wrappers, begin, begin + length);
+        if (handles != null) {
+            xmlNodeSet.handles = Arrays.copyOfRange(handles, begin, begin + length);
+            xmlNodeSet.handlesDTM = handlesDTM;
+        }
+        xmlNodeSet.size = length;
+        return xmlNodeSet;
+    }
+
+    public int length() {
+        return size;
     }
 
     @JRubyMethod(name="&")
     public IRubyObject and(ThreadContext context, IRubyObject nodeSet) {
-        if (nodes == null) setNodes(RubyArray.newEmptyArray(context.getRuntime()));
-        return newXmlNodeSet(context, (RubyArray) nodes.op_and(getNodes(context, nodeSet)));
+        final XmlNodeSet other = asXmlNodeSet(context, nodeSet);
+        final XmlNodeSet xmlNodeSet = create(context.getRuntime());
+        final DTMDefaultBase dtm = liveDTM(handlesDTM);
+        final int[] idents1, idents2;
+        if (dtm != null && (idents1 = documentOrderIdentities(dtm)) != null &&
+                          (idents2 = other.documentOrderIdentities(dtm)) != null) {
+            for (int i = 0, j = 0; i < size && j < other.size; ) {
+                if (idents1[i] < idents2[j]) i++;
+                else if (idents1[i] > idents2[j]) j++;
+                else { xmlNodeSet.add(this, i++); j++; }
+            }
+        }
+        else {
+            final IdentityHashMap<Object, Boolean> otherKeys = other.keySet();
+            final IdentityHashMap<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+            for (int i = 0; i < size; i++) {
+                final Object key = keyAt(i);
+                if (otherKeys.containsKey(key) && seen.put(key, Boolean.TRUE) == null) xmlNodeSet.add(this, i);
+            }
+            xmlNodeSet.sortInDocumentOrder();
+        }
+        xmlNodeSet.setReference(this);
+        return xmlNodeSet;
     }
 
     @JRubyMethod
     public IRubyObject delete(ThreadContext context, IRubyObject node_or_namespace) {
-        if (nodes == null) return context.getRuntime().getNil();
+        node_or_namespace = asXmlNodeOrNamespace(context, node_or_namespace);
         if (node_or_namespace instanceof XmlNamespace) {
             ((XmlNamespace) node_or_namespace).deleteHref();
         }
-        return nodes.delete(context, asXmlNodeOrNamespace(context, node_or_namespace), Block.NULL_BLOCK);
+        final Object key = toKey(node_or_namespace);
+        IRubyObject deleted = context.getRuntime().getNil();
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            if (keyAt(i) == key) {
+                deleted = nodeAt(i); continue;
+            }
+            if (i != j) {
+                nodes[j] = nodes[i];
+                if (wrappers != null) wrappers[j] = wrappers[i];
+                if (handles != null) handles[j] = handles[i];
+            }
+            j++;
+        }
+        for (int i = j; i < size; i++) {
+            nodes[i] = null; if (wrappers != null) wrappers[i] = null;
+        }
+        size = j;
+        return deleted;
     }
 
     @JRubyMethod
     public IRubyObject dup(ThreadContext context){
-        if (nodes == null) return newEmptyNodeSet(context);
-        return newXmlNodeSet(context, nodes.aryDup());
+        if (size == 0) return newEmptyNodeSet(context);
+        return subSet(context, 0, size);
     }
 
     @JRubyMethod(name = "include?")
     public IRubyObject include_p(ThreadContext context, IRubyObject node_or_namespace) {
         node_or_namespace = asXmlNodeOrNamespace(context, node_or_namespace);
-        if (nodes == null) return context.getRuntime().getFalse();
-        return nodes.include_p(context, node_or_namespace);
+        return context.getRuntime().newBoolean(indexOf(toKey(node_or_namespace)) >= 0);
     }
 
     @JRubyMethod(name = {"length", "size"})
     public IRubyObject length(ThreadContext context) {
-        return nodes != null ? nodes.length() : context.getRuntime().newFixnum(0);
+        return context.getRuntime().newFixnum(length());
     }
 
     @JRubyMethod(name="-")
     public IRubyObject op_diff(ThreadContext context, IRubyObject nodeSet) {
+        final XmlNodeSet other = asXmlNodeSet(context, nodeSet);
         XmlNodeSet xmlNodeSet = newXmlNodeSet(context, this);
-        if (nodes == null) setNodes(RubyArray.newEmptyArray(context.getRuntime()));
-        xmlNodeSet.setNodes((RubyArray) nodes.op_diff(getNodes(context, nodeSet)));
+        final DTMDefaultBase dtm = liveDTM(handlesDTM);
+        final int[] idents1, idents2;
+        if (dtm != null && (idents1 = documentOrderIdentities(dtm)) != null &&
+                          (idents2 = other.documentOrderIdentities(dtm)) != null) {
+            int j = 0;
+            for (int i = 0; i < size; i++) {
+                while (j < other.size && idents2[j] < idents1[i]) j++;
+                if (j == other.size || idents2[j] != idents1[i]) xmlNodeSet.add(this, i);
+            }
+        }
+        else {
+            final IdentityHashMap<Object, Boolean> otherKeys = other.keySet();
+            final IdentityHashMap<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+            for (int i = 0; i < size; i++) {
+                final Object key = keyAt(i);
+                if (!otherKeys.containsKey(key) && seen.put(key, Boolean.TRUE) == null) xmlNodeSet.add(this, i);
+            }
+            xmlNodeSet.sortInDocumentOrder();
+        }
         return xmlNodeSet;
     }
 
     @JRubyMethod(name={"|", "+"})
     public IRubyObject op_or(ThreadContext context, IRubyObject nodeSet) {
-        if (nodes == null) setNodes(RubyArray.newEmptyArray(context.getRuntime()));
-        return newXmlNodeSet(context, (RubyArray) nodes.op_or(getNodes(context, nodeSet)));
+        final XmlNodeSet other = asXmlNodeSet(context, nodeSet);
+        final XmlNodeSet xmlNodeSet = create(context.getRuntime());
+        xmlNodeSet.ensureCapacity(size + other.size);
+        final DTMDefaultBase dtm = liveDTM(handlesDTM);
+        final int[] idents1, idents2;
+        if (dtm != null && (idents1 = documentOrderIdentities(dtm)) != null &&
+                          (idents2 = other.documentOrderIdentities(dtm)) != null) {
+            int i = 0, j = 0;
+            while (i < size && j < other.size) {
+                if (idents1[i] < idents2[j]) xmlNodeSet.add(this, i++);
+                else if (idents1[i] > idents2[j]) xmlNodeSet.add(other, j++);
+                else { xmlNodeSet.add(this, i++); j++; }
+            }
+            while (i < size) xmlNodeSet.add(this, i++);
+            while (j < other.size) xmlNodeSet.add(other, j++);
+        }
+        else {
+            final IdentityHashMap<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>(size + other.size);
+            for (int i = 0; i < size; i++) {
+                if (seen.put(keyAt(i), Boolean.TRUE) == null) xmlNodeSet.add(this, i);
+            }
+            for (int i = 0; i < other.size; i++) {
+                if (seen.put(other.keyAt(i), Boolean.TRUE) == null) xmlNodeSet.add(other, i);
+            }
+            xmlNodeSet.sortInDocumentOrder();
+        }
+        xmlNodeSet.setReference(this);
+        return xmlNodeSet;
+    }
+
+    private IdentityHashMap<Object, Boolean> keySet() {
+        final IdentityHashMap<Object, Boolean> keys = new IdentityHashMap<Object, Boolean>(size);
+        for (int i = 0; i < size; i++) keys.put(keyAt(i), Boolean.TRUE);
+        return keys;
     }
 
     @JRubyMethod(name = {"push", "<<"})
     public IRubyObject push(ThreadContext context, IRubyObject node_or_namespace) {
-        if (nodes == null) setNodes(RubyArray.newArray(context.getRuntime()));
-        nodes.append(asXmlNodeOrNamespace(context, node_or_namespace));
+        node_or_namespace = asXmlNodeOrNamespace(context, node_or_namespace);
+        ensureCapacity(size + 1);
+        if (wrappers == null) wrappers = new IRubyObject[nodes.length];
+        nodes[size] = toNode(node_or_namespace);
+        wrappers[size] = node_or_namespace;
+        size++;
+        handles = null; handlesDTM = null;
         return this;
     }
 
     @JRubyMethod(name={"[]", "slice"})
     public IRubyObject slice(ThreadContext context, IRubyObject indexOrRange){
-        if (nodes == null) return context.getRuntime().getNil();
-        IRubyObject result = nodes.aref19(indexOrRange);
-        if (result instanceof RubyArray) {
-            return newXmlNodeSet(context, (RubyArray) result);
+        if (indexOrRange instanceof RubyRange) {
+            final RubyRange range = (RubyRange) indexOrRange;
+            long begin = RubyNumeric.num2long(range.begin(context));
+            long end = RubyNumeric.num2long(range.end(context));
+            if (begin < 0) begin += size;
+            if (begin < 0 || begin > size) return context.getRuntime().getNil();
+            if (end < 0) end += size;
+            if (!range.isExcludeEnd()) end++;
+            return subSet(context, (int) begin, (int) Math.min(Math.max(end - begin, 0), size - begin));
         }
-        return result;
+        long index = indexOrRange instanceof RubyFixnum ?
+                ((RubyFixnum) indexOrRange).getLongValue() : RubyNumeric.num2long(indexOrRange);
+        if (index < 0) index += size;
+        if (index < 0 || index >= size) return context.getRuntime().getNil();
+        return nodeAt((int) index);
     }
 
     @JRubyMethod(name={"[]", "slice"})
     public IRubyObject slice(ThreadContext context, IRubyObject start, IRubyObject length){
-        if (nodes == null) return context.getRuntime().getNil();
-        IRubyObject result = nodes.aref19(start, length);
-        if (result instanceof RubyArray) {
-            return newXmlNodeSet(context, (RubyArray) result);
-        }
-        return context.getRuntime().getNil();
+        long begin = RubyNumeric.num2long(start);
+        long len = RubyNumeric.num2long(length);
+        if (begin < 0) begin += size;
+        if (begin < 0 || begin > size || len < 0) return context.getRuntime().getNil();
+        return subSet(context, (int) begin, (int) Math.min(len, size - begin));
     }
 
     @JRubyMethod(name = {"to_a", "to_ary"})
     public IRubyObject to_a(ThreadContext context) {
-        return nodes;
+        final IRubyObject[] array = new IRubyObject[size];
+        for (int i = 0; i < size; i++) array[i] = nodeAt(i);
+        return RubyArray.newArrayNoCopy(context.getRuntime(), array);
     }
 
     @JRubyMethod(name = {"unlink", "remove"})
     public IRubyObject unlink(ThreadContext context){
-        if (nodes == null) return this;
-        IRubyObject[] arr = nodes.toJavaArrayUnsafe();
-        for (int i = 0; i < arr.length; i++) {
-            if (arr[i] instanceof XmlNode) {
-                ((XmlNode) arr[i] ).unlink(context);
+        for (int i = 0; i < size; i++) {
+            final IRubyObject node = nodeAt(i);
+            if (node instanceof XmlNode) {
+                ((XmlNode) node).unlink(context);
             }
         }
         return this;
     }
 
+    /**
+     * Get the text of each member (as <code>map(&amp;:text)</code> would) without wrapping the nodes.
+     * @param context
+     * @return an array of strings (nil for namespaces)
+     */
+    @JRubyMethod
+    public IRubyObject texts(ThreadContext context) {
+        final Ruby runtime = context.getRuntime();
+        final IRubyObject[] texts = new IRubyObject[size];
+        for (int i = 0; i < size; i++) {
+            final IRubyObject wrapper = wrappers == null ? null : wrappers[i];
+            final Node node = nodes[i];
+            if (wrapper != null) { // might be an attribute or a DTD declaration
+                texts[i] = wrapper instanceof XmlNode ? ((XmlNode) wrapper).content(context) : runtime.getNil();
+            }
+            else if (node == null || isNamespaceNode(node)) {
+                texts[i] = runtime.getNil();
+            }
+            else if (node.getNodeType() == Node.ATTRIBUTE_NODE) {
+                texts[i] = stringOrNil(runtime, ((Attr) node).getValue());
+            }
+            else {
+                texts[i] = XmlNode.getContent(runtime, node, -1);
+            }
+        }
+        return RubyArray.newArrayNoCopy(runtime, texts);
+    }
+
+    /**
+     * Get the attribute value (by name) of each member (as <code>map { |node| node[name] }</code>
+     * would) without wrapping the nodes.
+     * @param context
+     * @param name the attribute name
+     * @return an array of strings (nil if the member is not an element or has no such attribute)
+     */
+    @JRubyMethod
+    public IRubyObject attribute_values(ThreadContext context, IRubyObject name) {
+        final Ruby runtime = context.getRuntime();
+        final String key = rubyStringToString(name.asString());
+        final IRubyObject[] values = new IRubyObject[size];
+        for (int i = 0; i < size; i++) {
+            final Node node = nodes[i];
+            if (node instanceof Element && ((Element) node).hasAttribute(key)) {
+                values[i] = stringOrNil(runtime, ((Element) node).getAttribute(key));
+            }
+            else {
+                values[i] = runtime.getNil();
+            }
+        }
+        return RubyArray.newArrayNoCopy(runtime, values);
+    }
+
+    /**
+     * Serializes each member (or the members' children if inner) into a separate string,
+     * same as <code>Node#native_write_to</code> would.
+     * Returns nil for an encoding other than UTF-8 and for members (documents, namespaces)
+     * that are not handled here.
+     */
+    @JRubyMethod(required = 4, visibility = Visibility.PRIVATE)
+    public IRubyObject native_write_each(ThreadContext context, IRubyObject[] args) {
+        final Ruby runtime = context.getRuntime();
+        final String encoding = args[0].isNil() ? null : rubyStringToString(args[0]);
+        if (!NokogiriHelpers.isUTF8(encoding)) return runtime.getNil();
+        final String indentString = rubyStringToString(args[1]);
+        final int options = RubyFixnum.fix2int(args[2]);
+        final boolean inner = args[3].isTrue();
+
+        final IRubyObject[] strings = new IRubyObject[size];
+        Node doc = null; boolean htmlDoc = false;
+        for (int i = 0; i < size; i++) {
+            if (!isWritableAt(i)) {
+                strings[i] = runtime.getNil(); continue;
+            }
+            final Node node = nodes[i];
+            if (node.getOwnerDocument() != doc) {
+                doc = node.getOwnerDocument();
+                htmlDoc = getCachedNode(doc) instanceof HtmlDocument;
+            }
+            final StringBuilder buffer = new StringBuilder();
+            if (inner) {
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    SaveContextVisitor visitor = newVisitor(options, indentString, encoding, htmlDoc, child);
+                    write(child, visitor);
+                    buffer.append(visitor.getInternalBuffer());
+                }
+            }
+            else {
+                SaveContextVisitor visitor = newVisitor(options, indentString, encoding, htmlDoc, node);
+                write(node, visitor);
+                buffer.append(visitor.getInternalBuffer());
+            }
+            strings[i] = convertString(runtime, buffer);
+        }
+        return RubyArray.newArrayNoCopy(runtime, strings);
+    }
+
+    private static SaveContextVisitor newVisitor(int options, String indentString, String encoding, boolean htmlDoc, Node node) {
+        final boolean fragment = node instanceof DocumentFragment || node.getParentNode() instanceof DocumentFragment;
+        return new SaveContextVisitor(options, indentString, encoding, htmlDoc, fragment, 0);
+    }
+
+    // members that get serialized same as by their wrapper's XmlNode#accept (not documents, DTDs or namespaces)
+    private boolean isWritableAt(final int index) {
+        final Node node = nodes[index];
+        if (node == null) return false;
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE: case Node.TEXT_NODE: case Node.CDATA_SECTION_NODE:
+            case Node.COMMENT_NODE: case Node.PROCESSING_INSTRUCTION_NODE: case Node.ENTITY_REFERENCE_NODE:
+                break;
+            case Node.ATTRIBUTE_NODE:
+                if (isNamespaceNode(node)) return false;
+                break;
+            default:
+                return false;
+        }
+        // DTD declarations only end up in a set from Ruby (wrapped)
+        final IRubyObject wrapper = wrappers == null ? null : wrappers[index];
+        return !(wrapper instanceof XmlElementDecl || wrapper instanceof XmlAttributeDecl || wrapper instanceof XmlEntityDecl);
+    }
+
+    private static void write(final Node node, final SaveContextVisitor visitor) {
+        if (node.getNodeType() == Node.CDATA_SECTION_NODE) { // as XmlCdata#accept (not handled as Text)
+            visitor.enter((CDATASection) node);
+            visitor.leave((CDATASection) node);
+            return;
+        }
+        visitor.enter(node);
+        if (node.getNodeType() != Node.ATTRIBUTE_NODE) {
+            for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                write(child, visitor);
+            }
+        }
+        visitor.leave(node);
+    }
+
     private static XmlNodeSet newXmlNodeSet(ThreadContext context, XmlNodeSet reference) {
         XmlNodeSet xmlNodeSet = create(context.getRuntime());
         xmlNodeSet.setReference(reference);
@@ -236,23 +748,34 @@ public class XmlNodeSet extends RubyObject implements NodeList {
         throw context.getRuntime().newArgumentError("node must be a Nokogiri::XML::Node or Nokogiri::XML::Namespace");
     }
 
-    private static RubyArray getNodes(ThreadContext context, IRubyObject possibleNodeSet) {
+    private static XmlNodeSet asXmlNodeSet(ThreadContext context, IRubyObject possibleNodeSet) {
         if (possibleNodeSet instanceof XmlNodeSet) {
-            RubyArray nodes = ((XmlNodeSet) possibleNodeSet).nodes;
-            return nodes == null ? RubyArray.newEmptyArray(context.getRuntime()) : nodes;
+            return (XmlNodeSet) possibleNodeSet;
         }
         throw context.getRuntime().newArgumentError("node must be a Nokogiri::XML::NodeSet");
     }
-    
+
+    /**
+     * @param index of a member
+     * @return the DTM node handle of the member (if the set is an XPath result) or {@link DTM#NULL}
+     */
+    int handleAt(final int index) {
+        return handles == null ? DTM.NULL : handles[index];
+    }
+
+    /**
+     * @return the DTM the {@link #handleAt(int)} handles belong to, null if there are no handles
+     */
+    DTM getHandlesDTM() {
+        return handles == null ? null : handlesDTM;
+    }
+
     public int getLength() {
-        return nodes == null ? 0 : nodes.size();
+        return size;
     }
-    
+
     public Node item(int index) {
-        if (nodes == null) return null;
-        Object n = nodes.get(index);
-        if (n instanceof XmlNode) return ((XmlNode)n).node;
-        if (n instanceof XmlNamespace) return ((XmlNamespace)n).getNode();
-        return null;
+        if (index < 0 || index >= size) return null;
+        return nodes[index];
     }
 }
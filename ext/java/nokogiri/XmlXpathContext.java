@@ -32,16 +32,28 @@
 
 package nokogiri;
 
+import static nokogiri.internals.NokogiriHelpers.getCachedNodeOrCreate;
+
+import java.util.Map;
 import java.util.Set;
 
 import javax.xml.transform.TransformerException;
 
 import nokogiri.internals.NokogiriNamespaceContext;
+import nokogiri.internals.NokogiriXPathCache;
+import nokogiri.internals.NokogiriXPathExtensionsProvider;
+import nokogiri.internals.NokogiriXPathFunction;
 import nokogiri.internals.NokogiriXPathFunctionResolver;
+import nokogiri.internals.NokogiriXPathFunctions;
+import nokogiri.internals.NokogiriXPathStats;
 import nokogiri.internals.NokogiriXPathVariableResolver;
+import nokogiri.internals.ThreadLocalXPathContext;
 
 import org.jruby.Ruby;
+import org.jruby.RubyArray;
 import org.jruby.RubyClass;
+import org.jruby.RubyHash;
+import org.jruby.RubyNumeric;
 import org.jruby.RubyObject;
 import org.jruby.anno.JRubyClass;
 import org.jruby.anno.JRubyMethod;
@@ -50,13 +62,14 @@ import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
 import org.jruby.util.SafePropertyAccessor;
 import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 
 import org.apache.xml.dtm.DTM;
+import org.apache.xml.dtm.DTMIterator;
+import org.apache.xpath.VariableStack;
 import org.apache.xpath.XPath;
 import org.apache.xpath.XPathContext;
-import org.apache.xpath.jaxp.JAXPExtensionsProvider;
 import org.apache.xpath.jaxp.JAXPPrefixResolver;
-import org.apache.xpath.jaxp.JAXPVariableStack;
 import org.apache.xpath.objects.XObject;
 
 /**
@@ -111,28 +124,95 @@ public class XmlXpathContext extends RubyObject {
 
     @JRubyMethod
     public IRubyObject evaluate(ThreadContext context, IRubyObject expr, IRubyObject handler) {
+        return evaluate(context, expr, handler, false);
+    }
+
+    @JRubyMethod
+    public IRubyObject evaluate(ThreadContext context, IRubyObject expr) {
+        return this.evaluate(context, expr, context.getRuntime().getNil());
+    }
+
+    /**
+     * Same as {@link #evaluate(ThreadContext, IRubyObject, IRubyObject)} but node-set results are
+     * not collected, iteration stops at the first node (in document order) which is returned.
+     * @return the first matched node or nil (non node-set results are returned as they are)
+     */
+    @JRubyMethod
+    public IRubyObject evaluate_first(ThreadContext context, IRubyObject expr, IRubyObject handler) {
+        return evaluate(context, expr, handler, true);
+    }
+
+    @JRubyMethod
+    public IRubyObject evaluate_first(ThreadContext context, IRubyObject expr) {
+        return this.evaluate_first(context, expr, context.getRuntime().getNil());
+    }
 
-        String src = expr.convertToString().asJavaString();
+    /**
+     * Evaluates all of the given expressions against a single (shared) XPath context,
+     * the context is setup (and variables bound) once for the whole batch.
+     * @return an array of results, in the same order as the expressions
+     */
+    @JRubyMethod
+    public IRubyObject evaluate_batch(ThreadContext context, IRubyObject exprs, IRubyObject handler) {
+        final RubyArray<?> exprArray = exprs.convertToArray();
+        final String[] srcs = new String[exprArray.size()];
+        for ( int i = 0; i < srcs.length; i++ ) {
+            srcs[i] = prepareExpression(exprArray.eltInternal(i), handler);
+        }
+        return context.runtime.newArrayNoCopy(node_sets(context, srcs, handler, false));
+    }
+
+    @JRubyMethod
+    public IRubyObject evaluate_batch(ThreadContext context, IRubyObject exprs) {
+        return this.evaluate_batch(context, exprs, context.getRuntime().getNil());
+    }
+
+    private IRubyObject evaluate(ThreadContext context, IRubyObject expr, IRubyObject handler, final boolean first) {
+        final String src = prepareExpression(expr, handler);
+        return node_sets(context, new String[] { src }, handler, first)[0];
+    }
+
+    private String prepareExpression(IRubyObject expr, IRubyObject handler) {
+        return prepareExpression(expr.convertToString().asJavaString(), handler, nsContext);
+    }
+
+    static String prepareExpression(String src, IRubyObject handler, final NokogiriNamespaceContext nsContext) {
         if (!handler.isNil()) {
-            if (!isContainsPrefix(src)) {
-                StringBuilder replacement = new StringBuilder();
+            if (!isContainsPrefix(src, nsContext)) {
                 Set<String> methodNames = handler.getMetaClass().getMethods().keySet();
-                final String PREFIX = NokogiriNamespaceContext.NOKOGIRI_PREFIX;
                 for (String name : methodNames) {
-                    replacement.setLength(0);
-                    replacement.ensureCapacity(PREFIX.length() + 1 + name.length());
-                    replacement.append(PREFIX).append(':').append(name);
-                    src = src.replace(name, replacement); // replace(name, NOKOGIRI_PREFIX + ':' + name)
+                    src = prefixFunctionCalls(src, name, NokogiriNamespaceContext.NOKOGIRI_PREFIX);
                 }
             }
         }
+        return src;
+    }
 
-        return node_set(context, src, handler);
+    /**
+     * Prefixes calls of the given function, only whole (unprefixed) function names are matched
+     * e.g. with <code>index</code> : <code>index(.)</code> is rewritten but not <code>child-index()</code>.
+     */
+    static String prefixFunctionCalls(final String src, final String name, final String prefix) {
+        int i = src.indexOf(name);
+        if (i == -1 || name.length() == 0) return src;
+
+        StringBuilder result = null; int last = 0;
+        for ( ; i != -1; i = src.indexOf(name, i + name.length()) ) {
+            if (i > 0 && isNameChar(src.charAt(i - 1))) continue;
+            int j = i + name.length();
+            while (j < src.length() && Character.isWhitespace(src.charAt(j))) j++;
+            if (j == src.length() || src.charAt(j) != '(') continue;
+
+            if (result == null) result = new StringBuilder(src.length() + 16);
+            result.append(src, last, i).append(prefix).append(':');
+            last = i;
+        }
+        if (result == null) return src;
+        return result.append(src, last, src.length()).toString();
     }
 
-    @JRubyMethod
-    public IRubyObject evaluate(ThreadContext context, IRubyObject expr) {
-        return this.evaluate(context, expr, context.getRuntime().getNil());
+    private static boolean isNameChar(final char c) { // a preceding ':' means a (different) prefix
+        return Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == '.' || c == ':';
     }
 
     private final NokogiriNamespaceContext nsContext = NokogiriNamespaceContext.create();
@@ -156,82 +236,289 @@ public class XmlXpathContext extends RubyObject {
         return this;
     }
 
-    private IRubyObject node_set(ThreadContext context, String expr, IRubyObject handler) {
-        final NokogiriXPathFunctionResolver fnResolver =
-            handler.isNil() ? null : NokogiriXPathFunctionResolver.create(handler);
-        try {
-            return tryGetNodeSet(context, expr, fnResolver);
+    /**
+     * @return the maximum number of compiled expressions kept in the (JVM-wide) cache
+     */
+    @JRubyMethod(meta = true)
+    public static IRubyObject expression_cache_size(ThreadContext context, IRubyObject self) {
+        return context.runtime.newFixnum(NokogiriXPathCache.getInstance().getMaxSize());
+    }
+
+    @JRubyMethod(name = "expression_cache_size=", meta = true)
+    public static IRubyObject set_expression_cache_size(ThreadContext context, IRubyObject self, IRubyObject size) {
+        final int maxSize = RubyNumeric.num2int(size);
+        if (maxSize < 0) throw context.runtime.newArgumentError("negative cache size: " + maxSize);
+        NokogiriXPathCache.getInstance().setMaxSize(maxSize);
+        return size;
+    }
+
+    /**
+     * @return a hash with compiled expression cache counters ("hits", "misses", "size" and "max_size")
+     */
+    @JRubyMethod(meta = true)
+    public static IRubyObject expression_cache_stats(ThreadContext context, IRubyObject self) {
+        final Ruby runtime = context.runtime;
+        final NokogiriXPathCache cache = NokogiriXPathCache.getInstance();
+        RubyHash stats = RubyHash.newHash(runtime);
+        stats.op_aset(context, runtime.newString("hits"), runtime.newFixnum(cache.getHits()));
+        stats.op_aset(context, runtime.newString("misses"), runtime.newFixnum(cache.getMisses()));
+        stats.op_aset(context, runtime.newString("size"), runtime.newFixnum(cache.size()));
+        stats.op_aset(context, runtime.newString("max_size"), runtime.newFixnum(cache.getMaxSize()));
+        return stats;
+    }
+
+    @JRubyMethod(meta = true)
+    public static IRubyObject clear_expression_cache(ThreadContext context, IRubyObject self) {
+        NokogiriXPathCache.getInstance().clear();
+        return context.nil;
+    }
+
+    /**
+     * @return a hash of (Ruby handler) XPath functions, keyed as "HandlerClass#name", to their "calls" count
+     * and "time" (in seconds), calls are only recorded while instrumentation is enabled
+     */
+    @JRubyMethod(meta = true)
+    public static IRubyObject function_stats(ThreadContext context, IRubyObject self) {
+        final Ruby runtime = context.runtime;
+        RubyHash stats = RubyHash.newHash(runtime);
+        for (Map.Entry<String, NokogiriXPathFunction.Stats> entry : NokogiriXPathFunction.Stats.getAll().entrySet()) {
+            final NokogiriXPathFunction.Stats stat = entry.getValue();
+            RubyHash fnStats = RubyHash.newHash(runtime);
+            fnStats.op_aset(context, runtime.newString("calls"), runtime.newFixnum(stat.getCalls()));
+            fnStats.op_aset(context, runtime.newString("time"), runtime.newFloat(stat.getNanos() / 1e9));
+            stats.op_aset(context, runtime.newString(entry.getKey()), fnStats);
         }
-        catch (TransformerException ex) {
-            throw new RaiseException(XmlSyntaxError.createXMLXPathSyntaxError(context.runtime, expr, ex)); // Nokogiri::XML::XPath::SyntaxError
+        return stats;
+    }
+
+    @JRubyMethod(meta = true)
+    public static IRubyObject clear_function_stats(ThreadContext context, IRubyObject self) {
+        NokogiriXPathFunction.Stats.reset();
+        return context.nil;
+    }
+
+    /**
+     * @return whether XPath instrumentation is enabled (JVM-wide)
+     */
+    @JRubyMethod(name = "instrumentation?", meta = true)
+    public static IRubyObject instrumentation_p(ThreadContext context, IRubyObject self) {
+        return context.runtime.newBoolean(NokogiriXPathStats.getInstance().isEnabled());
+    }
+
+    /**
+     * Enables (or disables) XPath instrumentation, DTM node counts are only collected for DTMs
+     * created while enabled (a document's DTM is created on its first XPath evaluation).
+     */
+    @JRubyMethod(name = "instrumentation=", meta = true)
+    public static IRubyObject set_instrumentation(ThreadContext context, IRubyObject self, IRubyObject enabled) {
+        NokogiriXPathStats.getInstance().setEnabled(enabled.isTrue());
+        return enabled;
+    }
+
+    /**
+     * @return a hash with "expressions" (per-expression "count", phase timings in seconds, "results",
+     * "nodes_visited" and "nodes_built"), "dtm" counters with recent "events" and the "expression_cache" stats
+     */
+    @JRubyMethod(meta = true)
+    public static IRubyObject instrumentation_stats(ThreadContext context, IRubyObject self) {
+        final Ruby runtime = context.runtime;
+        final NokogiriXPathStats instr = NokogiriXPathStats.getInstance();
+
+        RubyHash expressions = RubyHash.newHash(runtime);
+        for (Map.Entry<String, NokogiriXPathStats.ExpressionStats> entry : instr.getExpressionStats().entrySet()) {
+            final NokogiriXPathStats.ExpressionStats stat = entry.getValue();
+            RubyHash exprStats = RubyHash.newHash(runtime);
+            exprStats.op_aset(context, runtime.newString("count"), runtime.newFixnum(stat.getCount()));
+            exprStats.op_aset(context, runtime.newString("compile_time"), runtime.newFloat(stat.getCompileNanos() / 1e9));
+            exprStats.op_aset(context, runtime.newString("execute_time"), runtime.newFloat(stat.getExecuteNanos() / 1e9));
+            exprStats.op_aset(context, runtime.newString("iterate_time"), runtime.newFloat(stat.getIterateNanos() / 1e9));
+            exprStats.op_aset(context, runtime.newString("wrap_time"), runtime.newFloat(stat.getWrapNanos() / 1e9));
+            exprStats.op_aset(context, runtime.newString("results"), runtime.newFixnum(stat.getResults()));
+            exprStats.op_aset(context, runtime.newString("nodes_visited"), runtime.newFixnum(stat.getNodesVisited()));
+            exprStats.op_aset(context, runtime.newString("nodes_built"), runtime.newFixnum(stat.getNodesBuilt()));
+            expressions.op_aset(context, runtime.newString(entry.getKey()), exprStats);
         }
+
+        RubyArray<?> events = runtime.newArray();
+        for (NokogiriXPathStats.DTMEvent event : instr.getDTMEvents()) {
+            RubyHash eventHash = RubyHash.newHash(runtime);
+            eventHash.op_aset(context, runtime.newString("event"), runtime.newString(event.type));
+            eventHash.op_aset(context, runtime.newString("root"), event.root == null ? context.nil : runtime.newString(event.root));
+            eventHash.op_aset(context, runtime.newString("size"), runtime.newFixnum(event.size));
+            events.append(eventHash);
+        }
+        RubyHash dtm = RubyHash.newHash(runtime);
+        dtm.op_aset(context, runtime.newString("created"), runtime.newFixnum(instr.getDTMsCreated()));
+        dtm.op_aset(context, runtime.newString("built"), runtime.newFixnum(instr.getDTMsBuilt()));
+        dtm.op_aset(context, runtime.newString("invalidated"), runtime.newFixnum(instr.getDTMsInvalidated()));
+        dtm.op_aset(context, runtime.newString("released"), runtime.newFixnum(instr.getDTMsReleased()));
+        dtm.op_aset(context, runtime.newString("events"), events);
+
+        RubyHash stats = RubyHash.newHash(runtime);
+        stats.op_aset(context, runtime.newString("expressions"), expressions);
+        stats.op_aset(context, runtime.newString("dtm"), dtm);
+        stats.op_aset(context, runtime.newString("expression_cache"), expression_cache_stats(context, self));
+        return stats;
     }
 
-    private IRubyObject tryGetNodeSet(ThreadContext context, String expr, NokogiriXPathFunctionResolver fnResolver) throws TransformerException {
-        final Node contextNode = this.context.node;
+    @JRubyMethod(meta = true)
+    public static IRubyObject reset_instrumentation(ThreadContext context, IRubyObject self) {
+        NokogiriXPathStats.getInstance().reset();
+        return context.nil;
+    }
+
+    private IRubyObject[] node_sets(ThreadContext context, String[] exprs, IRubyObject handler, final boolean first) {
+        final XPathContext xpathContext = getXPathContext(this.context.node);
+        final NokogiriXPathExtensionsProvider extensions = (NokogiriXPathExtensionsProvider) xpathContext.getOwnerObject();
+        // function handler and variable bindings are per query, swapped onto the (shared) context
+        final NokogiriXPathFunctionResolver prevResolver = extensions.bind(handler.isNil() ? null : handler, this.context);
+        VariableStack varStack = null;
+        if ( variableResolver != null ) {
+            varStack = xpathContext.getVarStack();
+            xpathContext.setVarStack(variableResolver.getVariableStack());
+        }
 
+        final IRubyObject[] results = new IRubyObject[exprs.length];
         final JAXPPrefixResolver prefixResolver = new JAXPPrefixResolver(nsContext);
-        XPath xpathInternal = new XPath(expr, null, prefixResolver, XPath.SELECT);
+        try {
+            for ( int i = 0; i < exprs.length; i++ ) {
+                final String expr = exprs[i];
+                try {
+                    results[i] = tryGetNodeSet(context, xpathContext, expr, prefixResolver, !handler.isNil(), first);
+                }
+                catch (TransformerException ex) {
+                    throw new RaiseException(XmlSyntaxError.createXMLXPathSyntaxError(context.runtime, expr, ex)); // Nokogiri::XML::XPath::SyntaxError
+                }
+            }
+        }
+        finally {
+            extensions.restore(prevResolver);
+            if ( varStack != null ) xpathContext.setVarStack(varStack);
+        }
+        return results;
+    }
 
-        // We always need to have a ContextNode with Xalan XPath implementation
-        // To allow simple expression evaluation like 1+1 we are setting
-        // dummy Document as Context Node
-        final XObject xobj;
-        if ( contextNode == null )
-            xobj = xpathInternal.execute(getXPathContext(fnResolver), DTM.NULL, prefixResolver);
-        else
-            xobj = xpathInternal.execute(getXPathContext(fnResolver), contextNode, prefixResolver);
+    private IRubyObject tryGetNodeSet(ThreadContext context, final XPathContext xpathContext, String expr,
+                                      final JAXPPrefixResolver prefixResolver, final boolean functions,
+                                      final boolean first) throws TransformerException {
+        final Node contextNode = this.context.node;
+        final NokogiriXPathStats.Evaluation eval = NokogiriXPathStats.start(expr); // null unless instrumented
+        try {
+            XPath xpathInternal = NokogiriXPathCache.getInstance().compile(expr, nsContext, prefixResolver, functions);
+            if ( eval != null ) eval.compiled();
+
+            // We always need to have a ContextNode with Xalan XPath implementation
+            // To allow simple expression evaluation like 1+1 we are setting
+            // dummy Document as Context Node
+            final XObject xobj;
+            if ( contextNode == null )
+                xobj = xpathInternal.execute(xpathContext, DTM.NULL, prefixResolver);
+            else
+                xobj = xpathInternal.execute(xpathContext, contextNode, prefixResolver);
+            if ( eval != null ) eval.executed();
+
+            return toRubyResult(context, xobj, this.context, first, eval);
+        }
+        finally {
+            if ( eval != null ) eval.end();
+        }
+    }
 
+    static IRubyObject toRubyResult(ThreadContext context, final XObject xobj, final XmlNode refNode,
+                                    final boolean first, final NokogiriXPathStats.Evaluation eval)
+        throws TransformerException {
+        final IRubyObject result;
+        int size = 1;
         switch (xobj.getType()) {
-            case XObject.CLASS_BOOLEAN : return context.getRuntime().newBoolean(xobj.bool());
-            case XObject.CLASS_NUMBER :  return context.getRuntime().newFloat(xobj.num());
+            case XObject.CLASS_BOOLEAN : result = context.getRuntime().newBoolean(xobj.bool()); break;
+            case XObject.CLASS_NUMBER :  result = context.getRuntime().newFloat(xobj.num()); break;
             case XObject.CLASS_NODESET :
+                if ( first ) {
+                    result = firstNode(context, xobj, eval);
+                    if ( result.isNil() ) size = 0;
+                    break;
+                }
+                // NOTE: node-set gets (lazily) evaluated here, nodes get wrapped on access
+                final NodeList nodes = xobj.nodelist();
+                if ( eval != null ) { eval.iterated(); size = nodes.getLength(); }
                 XmlNodeSet xmlNodeSet = XmlNodeSet.create(context.getRuntime());
-                xmlNodeSet.setNodeList(xobj.nodelist());
-                xmlNodeSet.initialize(context.getRuntime(), this.context);
-                return xmlNodeSet;
-            default : return context.getRuntime().newString(xobj.str());
+                xmlNodeSet.setNodeList(nodes, refNode);
+                result = xmlNodeSet; break;
+            default : result = context.getRuntime().newString(xobj.str());
         }
+        if ( eval != null ) eval.wrapped(size);
+        return result;
     }
 
-    private XPathContext getXPathContext(final NokogiriXPathFunctionResolver fnResolver) {
-        Node doc = context.getNode().getOwnerDocument();
-        if (doc == null) doc = context.getNode();
-
-        XPathContext xpathContext = (XPathContext) doc.getUserData(XPATH_CONTEXT);
-
-        if ( xpathContext == null ) {
-            xpathContext = newXPathContext(fnResolver);
-            if ( variableResolver == null ) {
-                // NOTE: only caching without variables - could be improved by more sophisticated caching
-                doc.setUserData(XPATH_CONTEXT, xpathContext, null);
-            }
+    private static IRubyObject firstNode(ThreadContext context, final XObject xobj,
+                                         final NokogiriXPathStats.Evaluation eval) throws TransformerException {
+        final Node node;
+        final DTMIterator iter = xobj.iter();
+        if ( iter.isDocOrdered() ) { // no need to collect (and sort) all matching nodes
+            final int handle = iter.nextNode();
+            node = handle == DTM.NULL ? null : iter.getDTM(handle).getNode(handle);
         }
         else {
-            Object owner = xpathContext.getOwnerObject();
-            if ( ( owner == null && fnResolver == null ) ||
-                ( owner instanceof JAXPExtensionsProvider && ((JAXPExtensionsProvider) owner).hasSameResolver(fnResolver) ) ) {
-                // can be re-used assuming it has the same variable-stack (for now only cached if no variables)
-                if ( variableResolver == null ) return xpathContext;
-            }
-            xpathContext = newXPathContext(fnResolver); // otherwise we can not use the cached xpath-context
+            node = xobj.nodelist().item(0);
         }
+        if ( eval != null ) eval.iterated();
+        if ( node == null ) return context.nil;
+        return getCachedNodeOrCreate(context.runtime, node);
+    }
 
-        if ( variableResolver != null ) {
-            xpathContext.setVarStack(new JAXPVariableStack(variableResolver));
+    /**
+     * The XPath context (along with the DTM) is cached per document and used regardless of the
+     * function handler, handlers are bound for each evaluation.
+     * @param node the context node
+     * @return the XPath context cached for the node's document (or for the current thread if read-only)
+     * @see NokogiriXPathExtensionsProvider#bind(IRubyObject, IRubyObject)
+     */
+    static XPathContext getXPathContext(final Node node) {
+        Node doc = node.getOwnerDocument();
+        if (doc == null) doc = node;
+
+        final Object cached;
+        synchronized (doc) { cached = doc.getUserData(XPATH_CONTEXT); }
+
+        if ( cached instanceof ThreadLocalXPathContext ) { // read-only document
+            return ((ThreadLocalXPathContext) cached).get();
         }
 
+        XPathContext xpathContext = (XPathContext) cached;
+        if ( xpathContext == null ) {
+            xpathContext = newXPathContext();
+            synchronized (doc) { doc.setUserData(XPATH_CONTEXT, xpathContext, null); }
+        }
         return xpathContext;
     }
 
-    private static XPathContext newXPathContext(final NokogiriXPathFunctionResolver functionResolver) {
-        if ( functionResolver == null ) return new XPathContext(false);
-        return new XPathContext(new JAXPExtensionsProvider(functionResolver), false);
+    /**
+     * Builds the document's DTM (completely) to be shared by per-thread XPath contexts.
+     * @param doc the document
+     * @see ThreadLocalXPathContext
+     */
+    static void setReadOnly(final Node doc) {
+        synchronized (doc) {
+            if ( doc.getUserData(XPATH_CONTEXT) instanceof ThreadLocalXPathContext ) return;
+            doc.setUserData(XPATH_CONTEXT, new ThreadLocalXPathContext(doc, newXPathContext()), null);
+        }
+    }
+
+    static boolean isReadOnly(final Node doc) {
+        synchronized (doc) {
+            return doc.getUserData(XPATH_CONTEXT) instanceof ThreadLocalXPathContext;
+        }
     }
 
-    private boolean isContainsPrefix(final String str) {
+    private static XPathContext newXPathContext() {
+        return new XPathContext(new NokogiriXPathExtensionsProvider(), false);
+    }
+
+    private static boolean isContainsPrefix(final String str, final NokogiriNamespaceContext nsContext) {
         final StringBuilder prefix_ = new StringBuilder();
         for ( String prefix : nsContext.getAllPrefixes() ) {
+            // built-in functions (in XPath generated from CSS) do not get in the way of handler functions
+            if ( NokogiriXPathFunctions.NAMESPACE_URI.equals(nsContext.getNamespaceURI(prefix)) ) continue;
             prefix_.setLength(0);
             prefix_.ensureCapacity(prefix.length() + 1);
             prefix_.append(prefix).append(':');
@@ -242,32 +529,4 @@ public class XmlXpathContext extends RubyObject {
         return false;
     }
 
-    private static final class JAXPExtensionsProvider extends org.apache.xpath.jaxp.JAXPExtensionsProvider {
-
-        final NokogiriXPathFunctionResolver resolver;
-
-        JAXPExtensionsProvider(NokogiriXPathFunctionResolver resolver) {
-            super(resolver, false);
-            this.resolver = resolver;
-        }
-
-        //@Override
-        //public boolean equals(Object obj) {
-        //    if (obj instanceof JAXPExtensionsProvider) {
-        //        return hasSameResolver(((JAXPExtensionsProvider) obj).resolver);
-        //    }
-        //    return false;
-        //}
-
-        final boolean hasSameResolver(final NokogiriXPathFunctionResolver resolver) {
-            return resolver == this.resolver || resolver != null && (
-                resolver.getHandler() == null ? this.resolver.getHandler() == null : (
-                    resolver.getHandler() == this.resolver.getHandler()
-                    // resolver.getHandler().eql( this.resolver.getHandler() )
-                )
-            );
-        }
-
-    }
-
 }
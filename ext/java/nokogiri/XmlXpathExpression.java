@@ -0,0 +1,176 @@
+/**
+ * (The MIT License)
+ *
+ * Copyright (c) 2008 - 2018:
+ *
+ * * {Aaron Patterson}[http://tenderlovemaking.com]
+ * * {Mike Dalessio}[http://mike.daless.io]
+ * * {Charles Nutter}[http://blog.headius.com]
+ * * {Sergio Arbeo}[http://www.serabe.com]
+ * * {Patrick Mahoney}[http://polycrystal.org]
+ * * {Yoko Harada}[http://yokolet.blogspot.com]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * 'Software'), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED 'AS IS', WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package nokogiri;
+
+import java.util.Iterator;
+
+import javax.xml.transform.TransformerException;
+
+import nokogiri.internals.NokogiriNamespaceContext;
+import nokogiri.internals.NokogiriXPathCache;
+import nokogiri.internals.NokogiriXPathExtensionsProvider;
+import nokogiri.internals.NokogiriXPathFunctionResolver;
+import nokogiri.internals.NokogiriXPathStats;
+import nokogiri.internals.NokogiriXPathVariableResolver;
+
+import org.apache.xpath.VariableStack;
+import org.apache.xpath.XPath;
+import org.apache.xpath.XPathContext;
+import org.apache.xpath.jaxp.JAXPPrefixResolver;
+import org.apache.xpath.objects.XObject;
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyHash;
+import org.jruby.RubyObject;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Class for Nokogiri::XML::XPath::Expression
+ *
+ * A compiled XPath expression, namespaces and the function handler are bound upfront.
+ * The compiled expression might be shared between threads, however evaluation uses the (per document)
+ * XPath context shared with XPathContext, thus concurrent evaluation is only safe for documents marked
+ * <code>read_only!</code> (each thread gets its own context).
+ */
+@JRubyClass(name="Nokogiri::XML::XPath::Expression")
+public class XmlXpathExpression extends RubyObject {
+
+    private static final long serialVersionUID = 1L;
+
+    private IRubyObject path;
+    private IRubyObject namespaces;
+    private IRubyObject handler;
+
+    private String source; // the (prepared) expression
+    private XPath xpath;
+    private JAXPPrefixResolver prefixResolver;
+
+    public XmlXpathExpression(Ruby runtime, RubyClass klass) {
+        super(runtime, klass);
+    }
+
+    @JRubyMethod(required = 1, optional = 2, visibility = org.jruby.runtime.Visibility.PRIVATE)
+    public IRubyObject initialize(ThreadContext context, IRubyObject[] args) {
+        final Ruby runtime = context.runtime;
+        this.path = args[0].convertToString().strDup(runtime).freeze(context);
+        this.namespaces = args.length > 1 && !args[1].isNil() ?
+            args[1].convertToHash().dup() : RubyHash.newHash(runtime);
+        this.namespaces.setFrozen(true);
+        this.handler = args.length > 2 ? args[2] : context.nil;
+
+        final NokogiriNamespaceContext nsContext = NokogiriNamespaceContext.create();
+        final Iterator<?> entries = ((RubyHash) namespaces).directEntrySet().iterator();
+        while (entries.hasNext()) {
+            final java.util.Map.Entry<?, ?> entry = (java.util.Map.Entry<?, ?>) entries.next();
+            // strip off 'xmlns:' or 'xml:' (same as XPathContext#register_namespaces)
+            String prefix = entry.getKey().toString().replaceAll(".*:", "");
+            nsContext.registerNamespace(prefix, entry.getValue().toString());
+        }
+
+        String src = path.asJavaString().replace("xmlns:", " :"); // same as Searchable#xpath
+        this.source = XmlXpathContext.prepareExpression(src, handler, nsContext);
+        this.prefixResolver = new JAXPPrefixResolver(nsContext);
+        try {
+            this.xpath = NokogiriXPathCache.getInstance().compile(source, nsContext, prefixResolver, !handler.isNil());
+        }
+        catch (TransformerException ex) {
+            throw new RaiseException(XmlSyntaxError.createXMLXPathSyntaxError(runtime, source, ex)); // Nokogiri::XML::XPath::SyntaxError
+        }
+        return this;
+    }
+
+    @JRubyMethod
+    public IRubyObject path() { return path; }
+
+    @JRubyMethod
+    public IRubyObject namespaces() { return namespaces; }
+
+    @JRubyMethod
+    public IRubyObject handler() { return handler; }
+
+    /**
+     * Evaluate the expression against the given node (of any document).
+     * @param node the context node
+     * @param binds (optional) variable bindings
+     * @return same as XPathContext#evaluate
+     */
+    @JRubyMethod(required = 1, optional = 1)
+    public IRubyObject evaluate(ThreadContext context, IRubyObject[] args) {
+        final XmlNode node = asXmlNode(context, args[0]);
+        final IRubyObject binds = args.length > 1 ? args[1] : context.nil;
+
+        final XPathContext xpathContext = XmlXpathContext.getXPathContext(node.node);
+        final NokogiriXPathExtensionsProvider extensions = (NokogiriXPathExtensionsProvider) xpathContext.getOwnerObject();
+
+        VariableStack varStack = null;
+        if ( !binds.isNil() ) {
+            final NokogiriXPathVariableResolver variableResolver = NokogiriXPathVariableResolver.create();
+            final Iterator<?> entries = binds.convertToHash().directEntrySet().iterator();
+            while (entries.hasNext()) {
+                final java.util.Map.Entry<?, ?> entry = (java.util.Map.Entry<?, ?>) entries.next();
+                variableResolver.registerVariable(entry.getKey().toString(), entry.getValue().toString());
+            }
+            varStack = xpathContext.getVarStack();
+            xpathContext.setVarStack(variableResolver.getVariableStack());
+        }
+        final NokogiriXPathFunctionResolver prevResolver = extensions.bind(handler.isNil() ? null : handler, node);
+        final NokogiriXPathStats.Evaluation eval = NokogiriXPathStats.start(source); // null unless instrumented
+        try {
+            if ( eval != null ) eval.compiled(); // compiled upfront
+            final XObject xobj = xpath.execute(xpathContext, node.node, prefixResolver);
+            if ( eval != null ) eval.executed();
+            return XmlXpathContext.toRubyResult(context, xobj, node, false, eval);
+        }
+        catch (TransformerException ex) {
+            throw new RaiseException(XmlSyntaxError.createXMLXPathSyntaxError(context.runtime, source, ex));
+        }
+        finally {
+            if ( eval != null ) eval.end();
+            extensions.restore(prevResolver);
+            if ( varStack != null ) xpathContext.setVarStack(varStack);
+        }
+    }
+
+    private static XmlNode asXmlNode(ThreadContext context, IRubyObject node) {
+        if ( !(node instanceof XmlNode) ) {
+            throw context.runtime.newTypeError("expected a Nokogiri::XML::Node, got " + node.getMetaClass());
+        }
+        return (XmlNode) node;
+    }
+
+}
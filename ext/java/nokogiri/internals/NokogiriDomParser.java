@@ -38,9 +38,17 @@ import nokogiri.XmlDocument;
 
 import org.apache.xerces.parsers.DOMParser;
 import org.apache.xerces.parsers.XIncludeParserConfiguration;
+import org.apache.xerces.xni.Augmentations;
+import org.apache.xerces.xni.NamespaceContext;
+import org.apache.xerces.xni.QName;
+import org.apache.xerces.xni.XMLAttributes;
+import org.apache.xerces.xni.XMLLocator;
+import org.apache.xerces.xni.XMLString;
+import org.apache.xerces.xni.XNIException;
 import org.apache.xerces.xni.parser.XMLParserConfiguration;
 import org.cyberneko.dtd.DTDConfiguration;
 import org.w3c.dom.Document;
+import org.w3c.dom.Node;
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
@@ -50,6 +58,7 @@ import org.xml.sax.SAXException;
 /**
  * Sets up a Xerces/XNI DOM Parser for use with Nokogiri.  Uses
  * NekoDTD to parse the DTD into a tree of Nodes.
+ * Source lines of (deferred) nodes are recorded as the document gets parsed.
  *
  * @author Patrick Mahoney <pat@polycrystal.org>
  */
@@ -57,6 +66,9 @@ public class NokogiriDomParser extends DOMParser {
     protected DOMParser dtd;
     protected boolean xInclude;
     protected XMLParserConfiguration config;
+    private XMLLocator locator;
+    private NokogiriLineNumbers lineNumbers;
+    private int markupLine; // line where the last markup ended
 
     public NokogiriDomParser(XMLParserConfiguration config) {
         super(config);
@@ -97,6 +109,87 @@ public class NokogiriDomParser extends DOMParser {
             throw new RuntimeException("null document");
 
         doc.setUserData(XmlDocument.DTD_RAW_DOCUMENT, dtd.getDocument(), null);
+        if (lineNumbers != null) lineNumbers.attachTo(doc);
+        lineNumbers = null; locator = null;
+    }
+
+    @Override
+    public void startDocument(XMLLocator locator, String encoding, NamespaceContext namespaceContext, Augmentations augs)
+        throws XNIException {
+        super.startDocument(locator, encoding, namespaceContext, augs);
+        this.locator = locator;
+        this.lineNumbers = fDeferNodeExpansion && locator != null ? new NokogiriLineNumbers() : null;
+        this.markupLine = 1;
+    }
+
+    // NOTE: the locator points past the start tag (libxml2 reports the same line)
+    @Override
+    public void startElement(QName element, XMLAttributes attributes, Augmentations augs) throws XNIException {
+        super.startElement(element, attributes, augs);
+        if (lineNumbers != null) {
+            markupLine = locator.getLineNumber();
+            if (!fFilterReject) lineNumbers.setLine(fCurrentNodeIndex, markupLine);
+        }
+    }
+
+    @Override
+    public void endElement(QName element, Augmentations augs) throws XNIException {
+        super.endElement(element, augs);
+        if (lineNumbers != null) markupLine = locator.getLineNumber();
+    }
+
+    @Override
+    public void characters(XMLString text, Augmentations augs) throws XNIException {
+        super.characters(text, augs);
+        if (lineNumbers != null && !fFilterReject) {
+            // text is reported in chunks (past what has been scanned), it starts where preceding markup ended
+            final int index = fInCDATASection ? fCurrentCDATASectionIndex : lastChild(Node.TEXT_NODE);
+            if (index != -1 && lineNumbers.getLine(index) == 0) lineNumbers.setLine(index, markupLine);
+        }
+    }
+
+    @Override
+    public void startCDATA(Augmentations augs) throws XNIException {
+        super.startCDATA(augs);
+        if (lineNumbers != null) markupLine = locator.getLineNumber();
+    }
+
+    @Override
+    public void endCDATA(Augmentations augs) throws XNIException {
+        super.endCDATA(augs);
+        if (lineNumbers != null) markupLine = locator.getLineNumber();
+    }
+
+    @Override
+    public void comment(XMLString text, Augmentations augs) throws XNIException {
+        super.comment(text, augs);
+        if (lineNumbers != null && !fInDTD) markupLine = setLastChildLine(Node.COMMENT_NODE, text);
+    }
+
+    @Override
+    public void processingInstruction(String target, XMLString data, Augmentations augs) throws XNIException {
+        super.processingInstruction(target, data, augs);
+        if (lineNumbers != null && !fInDTD) markupLine = setLastChildLine(Node.PROCESSING_INSTRUCTION_NODE, data);
+    }
+
+    private int setLastChildLine(final short type, final XMLString text) {
+        final int endLine = locator.getLineNumber();
+        final int index = lastChild(type);
+        if (index == -1) return endLine;
+        // the locator points past the markup, count lines back to where it started
+        int line = endLine;
+        for (int i = text.offset; i < text.offset + text.length; i++) {
+            if (text.ch[i] == '\n') line--;
+        }
+        lineNumbers.setLine(index, line);
+        return endLine;
+    }
+
+    private int lastChild(final short type) {
+        if (fFilterReject || fCurrentNodeIndex == -1) return -1;
+        final int index = fDeferredDocumentImpl.getLastChild(fCurrentNodeIndex, false);
+        if (index == -1 || fDeferredDocumentImpl.getNodeType(index, false) != type) return -1;
+        return index;
     }
 
     private static class NokogiriXInlcudeEntityResolver implements org.xml.sax.EntityResolver {
@@ -0,0 +1,205 @@
+/**
+ * (The MIT License)
+ *
+ * Copyright (c) 2008 - 2018:
+ *
+ * * {Aaron Patterson}[http://tenderlovemaking.com]
+ * * {Mike Dalessio}[http://mike.daless.io]
+ * * {Charles Nutter}[http://blog.headius.com]
+ * * {Sergio Arbeo}[http://www.serabe.com]
+ * * {Patrick Mahoney}[http://polycrystal.org]
+ * * {Yoko Harada}[http://yokolet.blogspot.com]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * 'Software'), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED 'AS IS', WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package nokogiri.internals;
+
+import java.nio.charset.CharsetEncoder;
+
+/**
+ * Table driven (single pass) escaping of markup characters, used when serializing
+ * text and attribute values as well as for decoding text content.
+ *
+ * Escaping returns the input as is, unless there's something to escape.
+ */
+public final class NokogiriEscaper {
+
+    /**
+     * Text content (&amp; &lt; &gt; and \r).
+     */
+    public static final NokogiriEscaper TEXT = new NokogiriEscaper("&<>\r", "&amp;", "&lt;", "&gt;", "&#13;");
+
+    /**
+     * Attribute values, also escaping quotes and white-space that would get normalized.
+     */
+    public static final NokogiriEscaper ATTRIBUTE =
+        new NokogiriEscaper("&<>\"\n\r\t", "&amp;", "&lt;", "&gt;", "&quot;", "&#10;", "&#13;", "&#9;");
+
+    /**
+     * Attribute values of HTML documents (quotes are URL encoded).
+     */
+    public static final NokogiriEscaper HTML_ATTRIBUTE =
+        new NokogiriEscaper("&<>\"\n\r\t", "&amp;", "&lt;", "&gt;", "%22", "&#10;", "&#13;", "&#9;");
+
+    /**
+     * Does not escape any characters (only un-encodable ones, if an encoder is given).
+     */
+    public static final NokogiriEscaper NONE = new NokogiriEscaper("");
+
+    private final String chars; // escaped characters
+    private final String[] entities; // replacements (in order of chars)
+    private final String[] table = new String[128]; // replacement by (ASCII) character
+
+    private NokogiriEscaper(final String chars, final String... entities) {
+        this.chars = chars; this.entities = entities;
+        for (int i = 0; i < chars.length(); i++) table[chars.charAt(i)] = entities[i];
+    }
+
+    /**
+     * @param str
+     * @param from
+     * @return index of the first character to escape (at or after from), -1 if none
+     */
+    public int indexOf(final CharSequence str, int from) {
+        final String[] table = this.table;
+        for (final int len = str.length(); from < len; from++) {
+            final char c = str.charAt(from);
+            if (c < 128 && table[c] != null) return from;
+        }
+        return -1;
+    }
+
+    /**
+     * @param str
+     * @return the escaped string, or the passed string itself if there was nothing to escape
+     */
+    public CharSequence escape(final CharSequence str) {
+        final int i = indexOf(str, 0);
+        if (i == -1) return str;
+        final StringBuilder out = new StringBuilder(str.length() + 16).append(str, 0, i);
+        return escape(str, i, out, null);
+    }
+
+    /**
+     * @param str
+     * @param out the buffer to append the escaped string to
+     * @return the passed buffer
+     */
+    public StringBuilder escape(final CharSequence str, final StringBuilder out) {
+        return escape(str, 0, out, null);
+    }
+
+    /**
+     * @param str
+     * @param out the buffer to append the escaped string to
+     * @param encoder of the output encoding, characters it can not encode are written as
+     *                (hexadecimal) character references, might be null
+     * @return the passed buffer
+     */
+    public StringBuilder escape(final CharSequence str, final StringBuilder out, final CharsetEncoder encoder) {
+        return escape(str, 0, out, encoder);
+    }
+
+    private StringBuilder escape(final CharSequence str, final int from, final StringBuilder out, final CharsetEncoder encoder) {
+        final String[] table = this.table;
+        final int len = str.length();
+        // a Unicode encoding only fails to encode (lone) surrogates
+        final boolean unicode = encoder != null && encoder.charset().name().startsWith("UTF-");
+        int start = from; // start of the pending chunk that needs no escaping
+        for (int i = from; i < len; i++) {
+            final char c = str.charAt(i);
+            if (c < 128) {
+                final String entity = table[c];
+                if (entity == null) continue;
+                out.append(str, start, i).append(entity);
+                start = i + 1;
+            }
+            else if (encoder != null && !(unicode && (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE))) {
+                final int code = Character.codePointAt(str, i);
+                final int count = Character.charCount(code);
+                if (encoder.canEncode(str.subSequence(i, i + count))) {
+                    i += count - 1; continue;
+                }
+                out.append(str, start, i).append("&#x").append(Integer.toHexString(code)).append(';');
+                start = (i += count - 1) + 1;
+            }
+        }
+        return out.append(str, start, len);
+    }
+
+    /**
+     * @param str
+     * @return the unescaped string, or the passed string itself if there was nothing to unescape
+     */
+    public CharSequence unescape(final CharSequence str) {
+        final int len = str.length();
+        int i = 0;
+        while (i < len && str.charAt(i) != '&') i++;
+        if (i == len) return str;
+        final StringBuilder out = new StringBuilder(len).append(str, 0, i);
+        for (; i < len; i++) {
+            final int e = entityAt(str, i);
+            if (e == -1) out.append(str.charAt(i));
+            else {
+                out.append(chars.charAt(e)); i += entities[e].length() - 1;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @param str
+     * @param index
+     * @return (internal) index of the entity starting at the given position, -1 if there's none
+     * @see #charOf(int)
+     * @see #lengthOf(int)
+     */
+    int entityAt(final CharSequence str, final int index) {
+        if (str.charAt(index) != '&') return -1;
+        ENTITY: for (int e = 0; e < entities.length; e++) {
+            final String entity = entities[e];
+            if (index + entity.length() > str.length()) continue;
+            for (int j = 1; j < entity.length(); j++) {
+                if (str.charAt(index + j) != entity.charAt(j)) continue ENTITY;
+            }
+            return e;
+        }
+        return -1;
+    }
+
+    /**
+     * @param entity index (as returned from {@link #entityAt(CharSequence, int)})
+     * @return the escaped character
+     */
+    char charOf(final int entity) {
+        return chars.charAt(entity);
+    }
+
+    /**
+     * @param entity index (as returned from {@link #entityAt(CharSequence, int)})
+     * @return length of the entity
+     */
+    int lengthOf(final int entity) {
+        return entities[entity].length();
+    }
+
+}
@@ -0,0 +1,354 @@
+/**
+ * (The MIT License)
+ *
+ * Copyright (c) 2008 - 2018:
+ *
+ * * {Aaron Patterson}[http://tenderlovemaking.com]
+ * * {Mike Dalessio}[http://mike.daless.io]
+ * * {Charles Nutter}[http://blog.headius.com]
+ * * {Sergio Arbeo}[http://www.serabe.com]
+ * * {Patrick Mahoney}[http://polycrystal.org]
+ * * {Yoko Harada}[http://yokolet.blogspot.com]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * 'Software'), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED 'AS IS', WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package nokogiri.internals;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPathFunction;
+import javax.xml.xpath.XPathFunctionException;
+
+import org.apache.xalan.lib.ExsltMath;
+import org.apache.xalan.lib.ExsltSets;
+import org.apache.xalan.lib.ExsltStrings;
+import org.apache.xerces.dom.DocumentImpl;
+import org.apache.xpath.NodeSet;
+import org.apache.xpath.objects.XNumber;
+import org.apache.xpath.objects.XString;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Native implementations of the EXSLT str, math, set and regexp modules (for XPath queries).
+ *
+ * Functions are resolved by namespace URI (regardless of the prefix bound in the query) and are
+ * stateless, thus a single instance of each function is shared.
+ *
+ * @see <a href="http://exslt.org/">EXSLT</a>
+ */
+public final class NokogiriExsltFunctions {
+
+    private NokogiriExsltFunctions() { /* no instances */ }
+
+    public static final String STRINGS_URI = "http://exslt.org/strings";
+    public static final String MATH_URI = "http://exslt.org/math";
+    public static final String SETS_URI = "http://exslt.org/sets";
+    public static final String REGEXP_URI = "http://exslt.org/regular-expressions";
+
+    private static final int STR_TOKENIZE = 1, STR_SPLIT = 2, STR_CONCAT = 3, STR_PADDING = 4, STR_ALIGN = 5;
+
+    private static final int MATH_MIN = 10, MATH_MAX = 11, MATH_HIGHEST = 12, MATH_LOWEST = 13,
+        MATH_ABS = 14, MATH_SQRT = 15, MATH_POWER = 16, MATH_CONSTANT = 17, MATH_LOG = 18, MATH_RANDOM = 19,
+        MATH_SIN = 20, MATH_COS = 21, MATH_TAN = 22, MATH_ASIN = 23, MATH_ACOS = 24, MATH_ATAN = 25,
+        MATH_ATAN2 = 26, MATH_EXP = 27;
+
+    private static final int SET_DIFFERENCE = 30, SET_INTERSECTION = 31, SET_DISTINCT = 32,
+        SET_HAS_SAME_NODE = 33, SET_LEADING = 34, SET_TRAILING = 35;
+
+    private static final int RE_TEST = 40, RE_MATCH = 41, RE_REPLACE = 42;
+
+    private static final Map<QName, Function> FUNCTIONS = new HashMap<QName, Function>(64);
+
+    static {
+        define(STRINGS_URI, "tokenize", STR_TOKENIZE, 1, 2);
+        define(STRINGS_URI, "split", STR_SPLIT, 1, 2);
+        define(STRINGS_URI, "concat", STR_CONCAT, 1, 1);
+        define(STRINGS_URI, "padding", STR_PADDING, 1, 2);
+        define(STRINGS_URI, "align", STR_ALIGN, 2, 3);
+
+        define(MATH_URI, "min", MATH_MIN, 1, 1);
+        define(MATH_URI, "max", MATH_MAX, 1, 1);
+        define(MATH_URI, "highest", MATH_HIGHEST, 1, 1);
+        define(MATH_URI, "lowest", MATH_LOWEST, 1, 1);
+        define(MATH_URI, "abs", MATH_ABS, 1, 1);
+        define(MATH_URI, "sqrt", MATH_SQRT, 1, 1);
+        define(MATH_URI, "power", MATH_POWER, 2, 2);
+        define(MATH_URI, "constant", MATH_CONSTANT, 2, 2);
+        define(MATH_URI, "log", MATH_LOG, 1, 1);
+        define(MATH_URI, "random", MATH_RANDOM, 0, 0);
+        define(MATH_URI, "sin", MATH_SIN, 1, 1);
+        define(MATH_URI, "cos", MATH_COS, 1, 1);
+        define(MATH_URI, "tan", MATH_TAN, 1, 1);
+        define(MATH_URI, "asin", MATH_ASIN, 1, 1);
+        define(MATH_URI, "acos", MATH_ACOS, 1, 1);
+        define(MATH_URI, "atan", MATH_ATAN, 1, 1);
+        define(MATH_URI, "atan2", MATH_ATAN2, 2, 2);
+        define(MATH_URI, "exp", MATH_EXP, 1, 1);
+
+        define(SETS_URI, "difference", SET_DIFFERENCE, 2, 2);
+        define(SETS_URI, "intersection", SET_INTERSECTION, 2, 2);
+        define(SETS_URI, "distinct", SET_DISTINCT, 1, 1);
+        define(SETS_URI, "has-same-node", SET_HAS_SAME_NODE, 2, 2);
+        define(SETS_URI, "leading", SET_LEADING, 2, 2);
+        define(SETS_URI, "trailing", SET_TRAILING, 2, 2);
+
+        define(REGEXP_URI, "test", RE_TEST, 2, 3);
+        define(REGEXP_URI, "match", RE_MATCH, 2, 3);
+        define(REGEXP_URI, "replace", RE_REPLACE, 4, 4);
+    }
+
+    private static void define(String uri, String name, int id, int minArity, int maxArity) {
+        FUNCTIONS.put(new QName(uri, name), new Function(id, minArity, maxArity));
+    }
+
+    /**
+     * @param name the (namespaced) function name
+     * @param arity number of arguments
+     * @return the function or null if the name is not an EXSLT function (with the given arity)
+     */
+    public static XPathFunction resolve(final QName name, final int arity) {
+        final Function function = FUNCTIONS.get(name);
+        if (function == null || arity < function.minArity || arity > function.maxArity) return null;
+        return function;
+    }
+
+    private static final class Function implements XPathFunction {
+
+        final int id;
+        final int minArity, maxArity;
+
+        Function(int id, int minArity, int maxArity) {
+            this.id = id;
+            this.minArity = minArity; this.maxArity = maxArity;
+        }
+
+        @SuppressWarnings("rawtypes") // XPathFunction API
+        public Object evaluate(final List args) throws XPathFunctionException {
+            final int arity = args.size();
+            switch (id) {
+                case STR_TOKENIZE :
+                    return tokenize(string(args, 0), arity == 1 ? " \t\n\r" : string(args, 1));
+                case STR_SPLIT :
+                    return split(string(args, 0), arity == 1 ? " " : string(args, 1));
+                case STR_CONCAT : return ExsltStrings.concat(nodeSet(args, 0));
+                case STR_PADDING :
+                    if (arity == 1) return ExsltStrings.padding(number(args, 0));
+                    return ExsltStrings.padding(number(args, 0), string(args, 1));
+                case STR_ALIGN :
+                    if (arity == 2) return ExsltStrings.align(string(args, 0), string(args, 1));
+                    return ExsltStrings.align(string(args, 0), string(args, 1), string(args, 2));
+
+                case MATH_MIN : return ExsltMath.min(nodeSet(args, 0));
+                case MATH_MAX : return ExsltMath.max(nodeSet(args, 0));
+                case MATH_HIGHEST : return ExsltMath.highest(nodeSet(args, 0));
+                case MATH_LOWEST : return ExsltMath.lowest(nodeSet(args, 0));
+                case MATH_ABS : return Math.abs(number(args, 0));
+                case MATH_SQRT : return Math.sqrt(number(args, 0));
+                case MATH_POWER : return Math.pow(number(args, 0), number(args, 1));
+                case MATH_CONSTANT : return ExsltMath.constant(string(args, 0), number(args, 1));
+                case MATH_LOG : return Math.log(number(args, 0));
+                case MATH_RANDOM : return Math.random();
+                case MATH_SIN : return Math.sin(number(args, 0));
+                case MATH_COS : return Math.cos(number(args, 0));
+                case MATH_TAN : return Math.tan(number(args, 0));
+                case MATH_ASIN : return Math.asin(number(args, 0));
+                case MATH_ACOS : return Math.acos(number(args, 0));
+                case MATH_ATAN : return Math.atan(number(args, 0));
+                case MATH_ATAN2 : return Math.atan2(number(args, 0), number(args, 1));
+                case MATH_EXP : return Math.exp(number(args, 0));
+
+                case SET_DIFFERENCE : return ExsltSets.difference(nodeSet(args, 0), nodeSet(args, 1));
+                case SET_INTERSECTION : return ExsltSets.intersection(nodeSet(args, 0), nodeSet(args, 1));
+                case SET_DISTINCT : return ExsltSets.distinct(nodeSet(args, 0));
+                case SET_HAS_SAME_NODE : return ExsltSets.hasSameNode(nodeSet(args, 0), nodeSet(args, 1));
+                case SET_LEADING : return ExsltSets.leading(nodeSet(args, 0), nodeSet(args, 1));
+                case SET_TRAILING : return ExsltSets.trailing(nodeSet(args, 0), nodeSet(args, 1));
+
+                case RE_TEST :
+                    return pattern(string(args, 1), arity == 3 ? string(args, 2) : "").matcher(string(args, 0)).find();
+                case RE_MATCH :
+                    return match(string(args, 0), string(args, 1), arity == 3 ? string(args, 2) : "");
+                case RE_REPLACE :
+                    return replace(string(args, 0), string(args, 1), string(args, 2), string(args, 3));
+            }
+            throw new XPathFunctionException("unknown function: " + id);
+        }
+
+    }
+
+    // argument conversions, arguments are one of NodeList, String, Boolean or Double
+
+    private static String string(final List<?> args, final int i) {
+        final Object arg = args.get(i);
+        if (arg instanceof String) return (String) arg;
+        if (arg instanceof NodeList) {
+            final NodeList nodes = (NodeList) arg;
+            return nodes.getLength() == 0 ? "" : stringValue(nodes.item(0));
+        }
+        if (arg instanceof Double) return new XNumber((Double) arg).str();
+        return String.valueOf(arg);
+    }
+
+    private static double number(final List<?> args, final int i) {
+        final Object arg = args.get(i);
+        if (arg instanceof Double) return (Double) arg;
+        if (arg instanceof Boolean) return ((Boolean) arg) ? 1 : 0;
+        return new XString(string(args, i)).num();
+    }
+
+    private static NodeList nodeSet(final List<?> args, final int i) throws XPathFunctionException {
+        final Object arg = args.get(i);
+        if (arg instanceof NodeList) return (NodeList) arg;
+        throw new XPathFunctionException("argument " + (i + 1) + " is not a node-set");
+    }
+
+    private static String stringValue(Node node) {
+        if (node.getNodeType() == Node.DOCUMENT_NODE) {
+            node = ((Document) node).getDocumentElement();
+            if (node == null) return "";
+        }
+        final String value = node.getTextContent();
+        return value == null ? "" : value;
+    }
+
+    // node-set results
+
+    /**
+     * Nodes returned are children of a new (per call) document, thus a single DTM serves the whole
+     * result and nodes are not retained once no longer used (unlike with Xalan's shared document).
+     */
+    private static Document newResultDocument() {
+        final DocumentImpl doc = new DocumentImpl();
+        doc.setStrictErrorChecking(false); // allow for multiple (element) children
+        XalanDTMManagerPatch.markResultDocument(doc);
+        return doc;
+    }
+
+    private static Element appendElement(final Document doc, final String name, final String text) {
+        final Element element = doc.createElement(name);
+        if (text != null && text.length() > 0) element.appendChild(doc.createTextNode(text));
+        doc.appendChild(element);
+        return element;
+    }
+
+    /**
+     * <code>str:tokenize(string, delimiters?)</code> a <code>token</code> element for each token,
+     * with no delimiters every character is a token.
+     */
+    private static NodeList tokenize(final String str, final String delims) {
+        final Document doc = newResultDocument();
+        if (delims.length() == 0) {
+            for (int i = 0; i < str.length(); i++) appendElement(doc, "token", str.substring(i, i + 1));
+        }
+        else {
+            final StringTokenizer tokens = new StringTokenizer(str, delims);
+            while (tokens.hasMoreTokens()) appendElement(doc, "token", tokens.nextToken());
+        }
+        return new NodeSet(doc.getChildNodes());
+    }
+
+    /**
+     * <code>str:split(string, pattern?)</code> a <code>token</code> element for each part,
+     * with an empty pattern every character is a token.
+     */
+    private static NodeList split(final String str, final String pattern) {
+        final Document doc = newResultDocument();
+        if (pattern.length() == 0) {
+            for (int i = 0; i < str.length(); i++) appendElement(doc, "token", str.substring(i, i + 1));
+        }
+        else {
+            int from = 0;
+            while (from < str.length()) {
+                final int i = str.indexOf(pattern, from);
+                if (i == -1) {
+                    appendElement(doc, "token", str.substring(from)); break;
+                }
+                appendElement(doc, "token", str.substring(from, i));
+                from = i + pattern.length();
+            }
+        }
+        return new NodeSet(doc.getChildNodes());
+    }
+
+    // regexp
+
+    private static final int MAX_PATTERNS = 256;
+
+    // regexp functions get evaluated for every node tested, avoid re-compiling the same pattern
+    private static final Map<String, Pattern> patterns = new ConcurrentHashMap<String, Pattern>();
+
+    private static Pattern pattern(final String regex, final String flags) throws XPathFunctionException {
+        final boolean ignoreCase = flags.indexOf('i') != -1;
+        final String key = ignoreCase ? "i/" + regex : "/" + regex;
+        Pattern pattern = patterns.get(key);
+        if (pattern == null) {
+            try {
+                pattern = Pattern.compile(regex, ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0);
+            }
+            catch (PatternSyntaxException ex) {
+                throw new XPathFunctionException(ex);
+            }
+            if (patterns.size() >= MAX_PATTERNS) patterns.clear();
+            patterns.put(key, pattern);
+        }
+        return pattern;
+    }
+
+    /**
+     * <code>regexp:match(string, regex, flags?)</code> returns <code>match</code> elements,
+     * the whole match followed by its groups or every match when global (<code>g</code>).
+     */
+    private static NodeList match(final String str, final String regex, final String flags)
+        throws XPathFunctionException {
+        final Matcher matcher = pattern(regex, flags).matcher(str);
+        final Document doc = newResultDocument();
+        if (flags.indexOf('g') != -1) {
+            while (matcher.find()) appendElement(doc, "match", matcher.group());
+        }
+        else if (matcher.find()) {
+            for (int i = 0; i <= matcher.groupCount(); i++) appendElement(doc, "match", matcher.group(i));
+        }
+        return new NodeSet(doc.getChildNodes());
+    }
+
+    /**
+     * <code>regexp:replace(string, regex, flags, replacement)</code> the replacement is literal.
+     */
+    private static String replace(final String str, final String regex, final String flags, final String replacement)
+        throws XPathFunctionException {
+        final Matcher matcher = pattern(regex, flags).matcher(str);
+        final String quoted = Matcher.quoteReplacement(replacement);
+        return flags.indexOf('g') != -1 ? matcher.replaceAll(quoted) : matcher.replaceFirst(quoted);
+    }
+
+}
@@ -41,8 +41,6 @@ import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import nokogiri.HtmlDocument;
 import nokogiri.NokogiriService;
@@ -59,6 +57,8 @@ import nokogiri.XmlProcessingInstruction;
 import nokogiri.XmlText;
 import nokogiri.XmlXpathContext;
 
+import org.apache.xml.dtm.DTMManager;
+import org.apache.xpath.XPathContext;
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
 import org.jruby.RubyClass;
@@ -87,11 +87,23 @@ public class NokogiriHelpers {
     public static final String ENCODED_STRING = "NOKOGIRI_ENCODED_STRING";
 
     public static XmlNode getCachedNode(Node node) {
-        return (XmlNode) node.getUserData(CACHED_NODE);
+        return NokogiriNodeCache.get(node);
     }
 
     public static void clearCachedNode(Node node) {
-        node.setUserData(CACHED_NODE, null, null);
+        NokogiriNodeCache.put(node, null);
+    }
+
+    /**
+     * DOM user data (of all nodes) is kept in a table of the owner document, which is not thread-safe.
+     * Accessing cached wrappers is synchronized on the document, as read-only documents are queried
+     * concurrently.
+     * @param node
+     * @return the object to synchronize user data access on
+     */
+    public static Object userDataLock(Node node) {
+        final Node ownerDocument = node.getOwnerDocument();
+        return ownerDocument == null ? node : ownerDocument;
     }
 
     public static void clearXpathContext(Node node) {
@@ -101,7 +113,72 @@ public class NokogiriHelpers {
         if (ownerDocument == null) {
             ownerDocument = node;
         }
-        ownerDocument.setUserData(XmlXpathContext.XPATH_CONTEXT, null, null);
+        synchronized (ownerDocument) {
+            checkModifiable(ownerDocument, ownerDocument.getUserData(XmlXpathContext.XPATH_CONTEXT));
+            ownerDocument.setUserData(XmlXpathContext.XPATH_CONTEXT, null, null);
+        }
+    }
+
+    /**
+     * Let the cached XPath context know about a (structural) DOM change.
+     * Unlike {@link #clearXpathContext(Node)} the context is kept and only the DTM of the
+     * changed tree gets released, unless it can keep up with the change (e.g. on append).
+     *
+     * To be called before a node is removed (renamed or its attributes changed) and
+     * after a node has been inserted.
+     * @param node the changed (or inserted) node
+     * @param inserted whether the node has just been inserted
+     * @throws org.jruby.exceptions.RaiseException if the document is read-only
+     */
+    public static void invalidateXpathContext(Node node, boolean inserted) {
+        if (node == null) return;
+
+        Node ownerDocument = node.getOwnerDocument();
+        if (ownerDocument == null) {
+            ownerDocument = node;
+        }
+        final Object cached;
+        synchronized (ownerDocument) {
+            cached = ownerDocument.getUserData(XmlXpathContext.XPATH_CONTEXT);
+        }
+        if (cached == null) return;
+        checkModifiable(ownerDocument, cached);
+
+        XPathContext xpathContext = (XPathContext) cached;
+        DTMManager dtmManager = xpathContext.getDTMManager();
+        if (dtmManager instanceof XalanDTMManagerPatch) {
+            ((XalanDTMManagerPatch) dtmManager).nodeChanged(node, inserted);
+        }
+        else {
+            synchronized (ownerDocument) {
+                ownerDocument.setUserData(XmlXpathContext.XPATH_CONTEXT, null, null);
+            }
+        }
+    }
+
+    /**
+     * Raises unless the (owner) document of the given node is modifiable.
+     * @param node
+     * @see nokogiri.XmlDocument#read_only(ThreadContext)
+     */
+    public static void checkModifiable(Node node) {
+        Node ownerDocument = node.getOwnerDocument();
+        if (ownerDocument == null) {
+            ownerDocument = node;
+        }
+        final Object cached;
+        synchronized (ownerDocument) {
+            cached = ownerDocument.getUserData(XmlXpathContext.XPATH_CONTEXT);
+        }
+        checkModifiable(ownerDocument, cached);
+    }
+
+    private static void checkModifiable(final Node document, final Object cachedXPathContext) {
+        if (cachedXPathContext instanceof ThreadLocalXPathContext) {
+            final XmlNode doc = getCachedNode(document);
+            if (doc == null) throw new IllegalStateException("can't modify read-only document");
+            throw doc.getRuntime().newRuntimeError("can't modify read-only document");
+        }
     }
 
     /**
@@ -113,7 +190,7 @@ public class NokogiriHelpers {
     public static IRubyObject getCachedNodeOrCreate(Ruby ruby, Node node) {
         if(node == null) return ruby.getNil();
         if (node.getNodeType() == Node.ATTRIBUTE_NODE && isNamespace(node.getNodeName())) {
-            XmlDocument xmlDocument = (XmlDocument)node.getOwnerDocument().getUserData(CACHED_NODE);
+            XmlDocument xmlDocument = (XmlDocument) getCachedNode(node.getOwnerDocument());
             if (!(xmlDocument instanceof HtmlDocument)) {
                 String prefix = getLocalNameForNamespace(((Attr)node).getName());
                 prefix = prefix != null ? prefix : "";
@@ -123,12 +200,7 @@ public class NokogiriHelpers {
                 else return XmlNamespace.createFromAttr(ruby, (Attr)node);
             }
         }
-        XmlNode xmlNode = getCachedNode(node);
-        if(xmlNode == null) {
-            xmlNode = (XmlNode)constructNode(ruby, node);
-            node.setUserData(CACHED_NODE, xmlNode, null);
-        }
-        return xmlNode;
+        return NokogiriNodeCache.getOrCreate(ruby, node);
     }
 
     /**
@@ -137,49 +209,57 @@ public class NokogiriHelpers {
      * <code>node</code>.
      */
     public static IRubyObject constructNode(Ruby runtime, Node node) {
+        return constructNode(runtime, node, NokogiriService.getNodeClasses(runtime));
+    }
+
+    /**
+     * @see #constructNode(Ruby, Node)
+     * @param nodeClasses Nokogiri classes indexed by node type
+     */
+    static IRubyObject constructNode(Ruby runtime, Node node, RubyClass[] nodeClasses) {
         if (node == null) return runtime.getNil();
-        // this is slow; need a way to cache nokogiri classes/modules somewhere
-        switch (node.getNodeType()) {
+        final short type = node.getNodeType();
+        switch (type) {
             case Node.ELEMENT_NODE:
-                XmlElement xmlElement = (XmlElement) NokogiriService.XML_ELEMENT_ALLOCATOR.allocate(runtime, getNokogiriClass(runtime, "Nokogiri::XML::Element"));
+                XmlElement xmlElement = (XmlElement) NokogiriService.XML_ELEMENT_ALLOCATOR.allocate(runtime, nodeClasses[type]);
                 xmlElement.setNode(runtime.getCurrentContext(), node);
                 return xmlElement;
             case Node.ATTRIBUTE_NODE:
-                XmlAttr xmlAttr = (XmlAttr) NokogiriService.XML_ATTR_ALLOCATOR.allocate(runtime, getNokogiriClass(runtime, "Nokogiri::XML::Attr"));
+                XmlAttr xmlAttr = (XmlAttr) NokogiriService.XML_ATTR_ALLOCATOR.allocate(runtime, nodeClasses[type]);
                 xmlAttr.setNode(runtime.getCurrentContext(), node);
                 return xmlAttr;
             case Node.TEXT_NODE:
-                XmlText xmlText = (XmlText) NokogiriService.XML_TEXT_ALLOCATOR.allocate(runtime, getNokogiriClass(runtime, "Nokogiri::XML::Text"));
+                XmlText xmlText = (XmlText) NokogiriService.XML_TEXT_ALLOCATOR.allocate(runtime, nodeClasses[type]);
                 xmlText.setNode(runtime.getCurrentContext(), node);
                 return xmlText;
             case Node.COMMENT_NODE:
-                XmlComment xmlComment = (XmlComment) NokogiriService.XML_COMMENT_ALLOCATOR.allocate(runtime, getNokogiriClass(runtime, "Nokogiri::XML::Comment"));
+                XmlComment xmlComment = (XmlComment) NokogiriService.XML_COMMENT_ALLOCATOR.allocate(runtime, nodeClasses[type]);
                 xmlComment.setNode(runtime.getCurrentContext(), node);
                 return xmlComment;
             case Node.ENTITY_NODE:
-                return new XmlNode(runtime, getNokogiriClass(runtime, "Nokogiri::XML::EntityDecl"), node);
+                return new XmlNode(runtime, nodeClasses[type], node);
             case Node.ENTITY_REFERENCE_NODE:
-                XmlEntityReference xmlEntityRef = (XmlEntityReference) NokogiriService.XML_ENTITY_REFERENCE_ALLOCATOR.allocate(runtime, getNokogiriClass(runtime, "Nokogiri::XML::EntityReference"));
+                XmlEntityReference xmlEntityRef = (XmlEntityReference) NokogiriService.XML_ENTITY_REFERENCE_ALLOCATOR.allocate(runtime, nodeClasses[type]);
                 xmlEntityRef.setNode(runtime.getCurrentContext(), node);
                 return xmlEntityRef;
             case Node.PROCESSING_INSTRUCTION_NODE:
-                XmlProcessingInstruction xmlProcessingInstruction = (XmlProcessingInstruction) NokogiriService.XML_PROCESSING_INSTRUCTION_ALLOCATOR.allocate(runtime, getNokogiriClass(runtime, "Nokogiri::XML::ProcessingInstruction"));
+                XmlProcessingInstruction xmlProcessingInstruction = (XmlProcessingInstruction) NokogiriService.XML_PROCESSING_INSTRUCTION_ALLOCATOR.allocate(runtime, nodeClasses[type]);
                 xmlProcessingInstruction.setNode(runtime.getCurrentContext(), node);
                 return xmlProcessingInstruction;
             case Node.CDATA_SECTION_NODE:
-                XmlCdata xmlCdata = (XmlCdata) NokogiriService.XML_CDATA_ALLOCATOR.allocate(runtime, getNokogiriClass(runtime, "Nokogiri::XML::CDATA"));
+                XmlCdata xmlCdata = (XmlCdata) NokogiriService.XML_CDATA_ALLOCATOR.allocate(runtime, nodeClasses[type]);
                 xmlCdata.setNode(runtime.getCurrentContext(), node);
                 return xmlCdata;
             case Node.DOCUMENT_NODE:
-                XmlDocument xmlDocument = (XmlDocument) NokogiriService.XML_DOCUMENT_ALLOCATOR.allocate(runtime, getNokogiriClass(runtime, "Nokogiri::XML::Document"));
+                XmlDocument xmlDocument = (XmlDocument) NokogiriService.XML_DOCUMENT_ALLOCATOR.allocate(runtime, nodeClasses[type]);
                 xmlDocument.setDocumentNode(runtime.getCurrentContext(), node);
                 return xmlDocument;
             case Node.DOCUMENT_TYPE_NODE:
-                XmlDtd xmlDtd = (XmlDtd) NokogiriService.XML_DTD_ALLOCATOR.allocate(runtime, getNokogiriClass(runtime, "Nokogiri::XML::DTD"));
+                XmlDtd xmlDtd = (XmlDtd) NokogiriService.XML_DTD_ALLOCATOR.allocate(runtime, nodeClasses[type]);
                 xmlDtd.setNode(runtime, node);
                 return xmlDtd;
             default:
-                XmlNode xmlNode = (XmlNode) NokogiriService.XML_NODE_ALLOCATOR.allocate(runtime, getNokogiriClass(runtime, "Nokogiri::XML::Node"));
+                XmlNode xmlNode = (XmlNode) NokogiriService.XML_NODE_ALLOCATOR.allocate(runtime, nodeClasses[type]);
                 xmlNode.setNode(runtime.getCurrentContext(), node);
                 return xmlNode;
         }
@@ -529,37 +609,58 @@ public class NokogiriHelpers {
                 ((a != null) && (b != null) && (b.equals(a))));
     }
 
-    private static final Pattern encoded_pattern = Pattern.compile("&amp;|&gt;|&lt;|&#13;");
-    private static final String[] encoded = {"&amp;", "&gt;", "&lt;", "&#13;"};
-    private static final Pattern decoded_pattern = Pattern.compile("&|>|<|\r");
-    private static final String[] decoded = {"&", ">", "<", "\r"};
-
-    private static StringBuffer convert(Pattern ptn, CharSequence input, String[] oldChars, String[] newChars)  {
-        Matcher matcher = ptn.matcher(input);
-        boolean result = matcher.find();
-        StringBuffer sb = new StringBuffer(input.length() + 8);
-        while (result) {
-            String matched = matcher.group();
-            String replacement = "";
-            for (int i=0; i<oldChars.length; i++) {
-                if (matched.contains(oldChars[i])) {
-                    replacement = matched.replace(oldChars[i], newChars[i]);
-                    break;
-                }
-            }
-            matcher.appendReplacement(sb, replacement);
-            result = matcher.find();
-        }
-        matcher.appendTail(sb);
-        return sb;
-    }
-
     public static CharSequence encodeJavaString(CharSequence str) {
-        return convert(decoded_pattern, str, decoded, encoded);
+        return NokogiriEscaper.TEXT.escape(str);
     }
 
     public static CharSequence decodeJavaString(CharSequence str) {
-        return convert(encoded_pattern, str, encoded, decoded);
+        return NokogiriEscaper.TEXT.unescape(str);
+    }
+
+    /**
+     * Appends a string as UTF-8 bytes (lone surrogates are written as '?').
+     * @param out the UTF-8 byte list
+     * @param str the string
+     * @param decode whether to decode entity markers (of an encoded text node)
+     * @param limit max number of characters to write, negative for no limit
+     * @return number of characters (code points) written
+     * @see #decodeJavaString(CharSequence)
+     */
+    public static int writeUTF8(final ByteList out, final CharSequence str, final boolean decode, final int limit) {
+        final int len = str.length();
+        out.ensure(out.getRealSize() + (limit < 0 || limit >= len ? len * 3 : Math.min(len * 3, limit * 4)));
+        final byte[] bytes = out.getUnsafeBytes();
+        int pos = out.getBegin() + out.getRealSize();
+        int count = 0;
+        for (int i = 0; i < len && count != limit; i++, count++) {
+            char c = str.charAt(i);
+            if (decode && c == '&') {
+                final int e = NokogiriEscaper.TEXT.entityAt(str, i);
+                if (e != -1) {
+                    c = NokogiriEscaper.TEXT.charOf(e); i += NokogiriEscaper.TEXT.lengthOf(e) - 1;
+                }
+            }
+            if (c < 0x80) {
+                bytes[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[pos++] = (byte) (0xC0 | (c >> 6));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                bytes[pos++] = (byte) (0xE0 | (c >> 12));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, str.charAt(++i));
+                bytes[pos++] = (byte) (0xF0 | (cp >> 18));
+                bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                bytes[pos++] = '?';
+            }
+        }
+        out.setRealSize(pos - out.getBegin());
+        return count;
     }
 
     public static String getNodeName(Node node) {
@@ -799,6 +900,8 @@ public class NokogiriHelpers {
         Node result = doc.renameNode(n, namespaceURI, qualifiedName);
         if (result != n) {
             nsCache.replaceNode(n, result);
+            NokogiriNodeCache.renamed(n, result);
+            NokogiriLineNumbers.renamed(n, result);
         }
         return result;
     }
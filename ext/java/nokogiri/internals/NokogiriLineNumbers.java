@@ -0,0 +1,147 @@
+/**
+ * (The MIT License)
+ *
+ * Copyright (c) 2008 - 2018:
+ *
+ * * {Aaron Patterson}[http://tenderlovemaking.com]
+ * * {Mike Dalessio}[http://mike.daless.io]
+ * * {Charles Nutter}[http://blog.headius.com]
+ * * {Sergio Arbeo}[http://www.serabe.com]
+ * * {Patrick Mahoney}[http://polycrystal.org]
+ * * {Yoko Harada}[http://yokolet.blogspot.com]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * 'Software'), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED 'AS IS', WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package nokogiri.internals;
+
+import java.util.IdentityHashMap;
+
+import org.apache.xerces.dom.DeferredNode;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * Source line numbers of parsed nodes, recorded while parsing.
+ *
+ * Parsed documents are built as (Xerces) deferred DOM, lines are kept in an int table
+ * indexed by the deferred node index. Nodes adopted from another document (or replaced
+ * when renamed) get their line remembered by identity.
+ */
+public final class NokogiriLineNumbers {
+
+    private static final String LINE_NUMBERS = "NOKOGIRI_LINE_NUMBERS";
+
+    private int[] lines = new int[64];
+    private IdentityHashMap<Node, Integer> moved;
+
+    void setLine(final int index, final int line) {
+        if (index < 0) return;
+        if (index >= lines.length) {
+            final int[] newLines = new int[Math.max(lines.length * 2, index + 1)];
+            System.arraycopy(lines, 0, newLines, 0, lines.length);
+            lines = newLines;
+        }
+        lines[index] = line;
+    }
+
+    int getLine(final int index) {
+        return index >= 0 && index < lines.length ? lines[index] : 0;
+    }
+
+    void attachTo(final Document doc) {
+        doc.setUserData(LINE_NUMBERS, this, null);
+    }
+
+    /**
+     * @param node
+     * @return the (1-based) source line of a parsed node, 0 when not known
+     */
+    public static int getLine(final Node node) {
+        final Document doc = node.getOwnerDocument();
+        if (doc == null) return 0;
+        synchronized (doc) {
+            final NokogiriLineNumbers table = (NokogiriLineNumbers) doc.getUserData(LINE_NUMBERS);
+            if (table == null) return 0;
+            return table.lineOf(node);
+        }
+    }
+
+    /**
+     * Remembers lines of an adopted node and its descendants, as deferred node indexes
+     * from the previous document do not apply to the new one.
+     * @param previous the node's previous (owner) document
+     * @param node the adopted node
+     */
+    public static void adopted(final Document previous, final Node node) {
+        final Document doc = node.getOwnerDocument();
+        if (doc == null || doc.getUserData(LINE_NUMBERS) == null) return;
+        final NokogiriLineNumbers from = (NokogiriLineNumbers) previous.getUserData(LINE_NUMBERS);
+        final IdentityHashMap<Node, Integer> lines = new IdentityHashMap<Node, Integer>();
+        collect(from, node, lines);
+        synchronized (doc) {
+            ((NokogiriLineNumbers) doc.getUserData(LINE_NUMBERS)).moved().putAll(lines);
+        }
+    }
+
+    /**
+     * Keeps the line of a node replaced when being renamed.
+     * @param node the replaced node
+     * @param renamed the replacement
+     */
+    public static void renamed(final Node node, final Node renamed) {
+        final int line = getLine(node);
+        if (line == 0) return;
+        final Document doc = renamed.getOwnerDocument();
+        synchronized (doc) {
+            ((NokogiriLineNumbers) doc.getUserData(LINE_NUMBERS)).moved().put(renamed, line);
+        }
+    }
+
+    private int lineOf(Node node) {
+        if (node.getNodeType() == Node.ATTRIBUTE_NODE) { // attributes are on their element's line
+            node = ((Attr) node).getOwnerElement();
+            if (node == null) return 0;
+        }
+        if (moved != null) {
+            final Integer line = moved.get(node);
+            if (line != null) return line;
+        }
+        if (node instanceof DeferredNode) return getLine(((DeferredNode) node).getNodeIndex());
+        return 0;
+    }
+
+    private IdentityHashMap<Node, Integer> moved() {
+        if (moved == null) moved = new IdentityHashMap<Node, Integer>();
+        return moved;
+    }
+
+    private static void collect(final NokogiriLineNumbers from, final Node node, final IdentityHashMap<Node, Integer> lines) {
+        if (node instanceof DeferredNode) { // 0 when not known, not to look it up in the wrong table
+            lines.put(node, from == null ? 0 : from.lineOf(node));
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            collect(from, child, lines);
+        }
+    }
+
+}
@@ -112,6 +112,13 @@ public final class NokogiriNamespaceContext implements NamespaceContext {
         return register.keySet();
     }
 
+    /**
+     * @return a snapshot (copy) of the currently registered prefix to URI bindings
+     */
+    public Map<String, String> getRegisteredNamespaces() {
+        return new HashMap<String, String>(register);
+    }
+
     public void registerNamespace(String prefix, String uri) {
         if ("xmlns".equals(prefix)) prefix = "";
         register.put(prefix, uri);
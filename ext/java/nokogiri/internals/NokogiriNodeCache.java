@@ -0,0 +1,366 @@
+/**
+ * (The MIT License)
+ *
+ * Copyright (c) 2008 - 2018:
+ *
+ * * {Aaron Patterson}[http://tenderlovemaking.com]
+ * * {Mike Dalessio}[http://mike.daless.io]
+ * * {Charles Nutter}[http://blog.headius.com]
+ * * {Sergio Arbeo}[http://www.serabe.com]
+ * * {Patrick Mahoney}[http://polycrystal.org]
+ * * {Yoko Harada}[http://yokolet.blogspot.com]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * 'Software'), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED 'AS IS', WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package nokogiri.internals;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import nokogiri.NokogiriService;
+import nokogiri.XmlNode;
+
+import org.apache.xerces.dom.DeferredNode;
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Ruby wrappers of DOM nodes, kept in a side-table per document.
+ *
+ * Wrappers used to be stored as DOM user data, which Xerces keeps in a per document
+ * (weak) hash-table holding another table of user data records for each node.
+ * Parsed documents are built as (Xerces) deferred DOM, wrappers of these nodes are kept
+ * in an array indexed by the deferred node index. As a clone (or a node adopted from
+ * another document) shares the index, a slot is only used by the node it got filled for,
+ * other nodes (including those created later on) are kept in an identity map.
+ * The table of the last used document is remembered, thus looking up wrappers while
+ * traversing a parsed document costs an array access.
+ *
+ * A document might opt-in to hold wrappers weakly, a wrapper no longer referenced
+ * from Ruby gets collected (and a new one is created when the node is accessed again).
+ *
+ * Access is synchronized on the document, same as for other DOM user data.
+ *
+ * @see NokogiriHelpers#userDataLock(Node)
+ */
+public final class NokogiriNodeCache {
+
+    private static final String NODE_CACHE = "NOKOGIRI_NODE_CACHE";
+
+    private static volatile WeakReference<NokogiriNodeCache> last = new WeakReference<NokogiriNodeCache>(null);
+
+    private static final Node[] NO_NODES = new Node[0];
+    private static final Object[] NO_WRAPPERS = new Object[0];
+
+    private final Node document;
+    // values are XmlNode wrappers or (in weak mode) WeakWrapper references
+    private Node[] indexedNodes = NO_NODES; // by deferred node index
+    private Object[] indexed = NO_WRAPPERS;
+    private int indexedCount;
+    private final IdentityHashMap<Node, Object> wrappers = new IdentityHashMap<Node, Object>(64);
+    private RubyClass[] nodeClasses;
+    private ReferenceQueue<XmlNode> collected; // non-null in weak mode
+
+    private NokogiriNodeCache(final Node document) {
+        this.document = document;
+    }
+
+    /**
+     * @param node
+     * @return the cached wrapper of the node or null
+     */
+    public static XmlNode get(final Node node) {
+        final Node doc = documentOf(node);
+        if (doc == null) return (XmlNode) node.getUserData(NokogiriHelpers.CACHED_NODE);
+        synchronized (doc) {
+            final NokogiriNodeCache cache = forDocument(doc, false);
+            final XmlNode xmlNode = cache == null ? null : cache.lookup(node);
+            return xmlNode == null ? detached(node) : xmlNode;
+        }
+    }
+
+    /**
+     * @param node
+     * @param wrapper to cache, null to remove the cached one
+     */
+    public static void put(final Node node, final XmlNode wrapper) {
+        final Node doc = documentOf(node);
+        if (doc == null) {
+            node.setUserData(NokogiriHelpers.CACHED_NODE, wrapper, null); return;
+        }
+        synchronized (doc) {
+            final NokogiriNodeCache cache = forDocument(doc, wrapper != null);
+            if (cache == null) return;
+            if (wrapper == null) cache.remove(node);
+            else cache.store(node, wrapper);
+        }
+    }
+
+    /**
+     * Get the cached wrapper or wrap the node (and cache the new wrapper).
+     * @param runtime
+     * @param node
+     * @return the (cached) wrapper
+     */
+    public static XmlNode getOrCreate(final Ruby runtime, final Node node) {
+        final Node doc = documentOf(node);
+        if (doc == null) {
+            synchronized (node) {
+                XmlNode xmlNode = (XmlNode) node.getUserData(NokogiriHelpers.CACHED_NODE);
+                if (xmlNode == null) {
+                    xmlNode = (XmlNode) NokogiriHelpers.constructNode(runtime, node, NokogiriService.getNodeClasses(runtime));
+                    node.setUserData(NokogiriHelpers.CACHED_NODE, xmlNode, null);
+                }
+                return xmlNode;
+            }
+        }
+        synchronized (doc) {
+            final NokogiriNodeCache cache = forDocument(doc, true);
+            XmlNode xmlNode = cache.lookup(node);
+            if (xmlNode == null && (xmlNode = detached(node)) != null) {
+                cache.store(node, xmlNode);
+            }
+            if (xmlNode == null) {
+                if (cache.nodeClasses == null) cache.nodeClasses = NokogiriService.getNodeClasses(runtime);
+                xmlNode = (XmlNode) NokogiriHelpers.constructNode(runtime, node, cache.nodeClasses);
+                cache.store(node, xmlNode);
+            }
+            return xmlNode;
+        }
+    }
+
+    /**
+     * Moves the cached wrappers of an adopted node and its descendants (including attributes).
+     * @param previous the node's previous (owner) document
+     * @param node the adopted node
+     * @return the moved wrappers
+     */
+    public static Collection<XmlNode> adopted(final Document previous, final Node node) {
+        final IdentityHashMap<Node, XmlNode> moved = new IdentityHashMap<Node, XmlNode>();
+        synchronized (previous) {
+            final NokogiriNodeCache cache = forDocument(previous, false);
+            if (cache == null || cache.isEmpty()) return Collections.emptyList();
+            cache.collect(node, moved);
+        }
+        if (moved.isEmpty()) return Collections.emptyList();
+        final Node doc = documentOf(node);
+        synchronized (doc) {
+            final NokogiriNodeCache cache = forDocument(doc, true);
+            for (Map.Entry<Node, XmlNode> entry : moved.entrySet()) {
+                cache.store(entry.getKey(), entry.getValue());
+            }
+        }
+        return moved.values();
+    }
+
+    /**
+     * Moves the cached wrapper, when renaming a node had to replace it.
+     * @param node the replaced node
+     * @param renamed the replacement
+     */
+    public static void renamed(final Node node, final Node renamed) {
+        final XmlNode wrapper = get(node);
+        if (wrapper != null) {
+            put(node, null); put(renamed, wrapper);
+        }
+    }
+
+    /**
+     * Hold wrappers of the document's nodes weakly (from now on).
+     * @param doc
+     */
+    public static void setWeak(final Document doc) {
+        synchronized (doc) {
+            final NokogiriNodeCache cache = forDocument(doc, true);
+            if (cache.collected != null) return;
+            cache.collected = new ReferenceQueue<XmlNode>();
+            for (int i = 0; i < cache.indexedNodes.length; i++) {
+                final Node node = cache.indexedNodes[i];
+                if (node != null && isWeaklyHeld(node)) {
+                    cache.indexed[i] = new WeakWrapper(node, (XmlNode) cache.indexed[i], cache.collected);
+                }
+            }
+            for (Map.Entry<Node, Object> entry : cache.wrappers.entrySet()) {
+                final Node node = entry.getKey();
+                if (isWeaklyHeld(node)) {
+                    entry.setValue(new WeakWrapper(node, (XmlNode) entry.getValue(), cache.collected));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param doc
+     * @return whether wrappers are held weakly
+     */
+    public static boolean isWeak(final Document doc) {
+        synchronized (doc) {
+            final NokogiriNodeCache cache = forDocument(doc, false);
+            return cache != null && cache.collected != null;
+        }
+    }
+
+    private XmlNode lookup(final Node node) {
+        final Object wrapper = entry(node);
+        if (wrapper instanceof WeakWrapper) return ((WeakWrapper) wrapper).get();
+        return (XmlNode) wrapper;
+    }
+
+    private void store(final Node node, final XmlNode wrapper) {
+        if (collected != null && isWeaklyHeld(node)) {
+            expungeCollected();
+            putEntry(node, new WeakWrapper(node, wrapper, collected));
+        } else {
+            putEntry(node, wrapper);
+        }
+    }
+
+    private void expungeCollected() {
+        Reference<? extends XmlNode> ref;
+        while ((ref = collected.poll()) != null) {
+            final Node node = ((WeakWrapper) ref).node;
+            if (entry(node) == ref) remove(node);
+        }
+    }
+
+    private boolean isEmpty() {
+        return indexedCount == 0 && wrappers.isEmpty();
+    }
+
+    private Object entry(final Node node) {
+        final int index = indexOf(node);
+        if (index >= 0 && index < indexedNodes.length && indexedNodes[index] == node) return indexed[index];
+        return wrappers.isEmpty() ? null : wrappers.get(node);
+    }
+
+    private void putEntry(final Node node, final Object wrapper) {
+        final int index = indexOf(node);
+        if (index >= 0 && (wrappers.isEmpty() || !wrappers.containsKey(node))) {
+            if (index >= indexedNodes.length) growIndexed(index);
+            if (index < indexedNodes.length) {
+                final Node indexedNode = indexedNodes[index];
+                if (indexedNode == null || indexedNode == node) {
+                    if (indexedNode == null) indexedCount++;
+                    indexedNodes[index] = node; indexed[index] = wrapper;
+                    return;
+                }
+            }
+        }
+        wrappers.put(node, wrapper); // slot used by another node (e.g. the original of a clone)
+    }
+
+    private void remove(final Node node) {
+        final int index = indexOf(node);
+        if (index >= 0 && index < indexedNodes.length && indexedNodes[index] == node) {
+            indexedNodes[index] = null; indexed[index] = null; indexedCount--;
+        } else if (!wrappers.isEmpty()) {
+            wrappers.remove(node);
+        }
+    }
+
+    // grows the indexed table, unless that would leave it (mostly) empty
+    private void growIndexed(final int index) {
+        if (index > 4 * (indexedCount + 64)) return;
+        final int length = Math.max(indexedNodes.length * 2, index + 1);
+        final Node[] newNodes = new Node[length];
+        System.arraycopy(indexedNodes, 0, newNodes, 0, indexedNodes.length);
+        final Object[] newIndexed = new Object[length];
+        System.arraycopy(indexed, 0, newIndexed, 0, indexed.length);
+        indexedNodes = newNodes; indexed = newIndexed;
+    }
+
+    private static int indexOf(final Node node) {
+        return node instanceof DeferredNode ? ((DeferredNode) node).getNodeIndex() : -1;
+    }
+
+    private void collect(final Node node, final IdentityHashMap<Node, XmlNode> moved) {
+        move(node, moved);
+        final NamedNodeMap attrs = node.getAttributes();
+        if (attrs != null) {
+            for (int i = 0; i < attrs.getLength(); i++) move(attrs.item(i), moved);
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            collect(child, moved);
+        }
+    }
+
+    private void move(final Node node, final IdentityHashMap<Node, XmlNode> moved) {
+        final XmlNode wrapper = lookup(node);
+        if (wrapper != null) moved.put(node, wrapper);
+        remove(node);
+    }
+
+    // document (fragment) wrappers carry state that can not be re-created
+    private static boolean isWeaklyHeld(final Node node) {
+        switch (node.getNodeType()) {
+            case Node.DOCUMENT_NODE :
+            case Node.DOCUMENT_FRAGMENT_NODE :
+            case Node.DOCUMENT_TYPE_NODE :
+                return false;
+        }
+        return true;
+    }
+
+    // a document type gets wrapped before being inserted (owned by a document)
+    private static XmlNode detached(final Node node) {
+        if (node.getNodeType() != Node.DOCUMENT_TYPE_NODE) return null;
+        return (XmlNode) node.getUserData(NokogiriHelpers.CACHED_NODE);
+    }
+
+    private static Node documentOf(final Node node) {
+        if (node.getNodeType() == Node.DOCUMENT_NODE) return node;
+        return node.getOwnerDocument(); // null for a (not yet inserted) document type
+    }
+
+    private static NokogiriNodeCache forDocument(final Node doc, final boolean create) {
+        NokogiriNodeCache cache = last.get();
+        if (cache != null && cache.document == doc) return cache;
+        cache = (NokogiriNodeCache) doc.getUserData(NODE_CACHE);
+        if (cache == null) {
+            if (!create) return null;
+            cache = new NokogiriNodeCache(doc);
+            doc.setUserData(NODE_CACHE, cache, null);
+        }
+        last = new WeakReference<NokogiriNodeCache>(cache);
+        return cache;
+    }
+
+    private static final class WeakWrapper extends WeakReference<XmlNode> {
+
+        final Node node;
+
+        WeakWrapper(final Node node, final XmlNode wrapper, final ReferenceQueue<XmlNode> queue) {
+            super(wrapper, queue);
+            this.node = node;
+        }
+
+    }
+
+}
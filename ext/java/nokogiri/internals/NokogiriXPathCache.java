@@ -0,0 +1,170 @@
+/**
+ * (The MIT License)
+ *
+ * Copyright (c) 2008 - 2018:
+ *
+ * * {Aaron Patterson}[http://tenderlovemaking.com]
+ * * {Mike Dalessio}[http://mike.daless.io]
+ * * {Charles Nutter}[http://blog.headius.com]
+ * * {Sergio Arbeo}[http://www.serabe.com]
+ * * {Patrick Mahoney}[http://polycrystal.org]
+ * * {Yoko Harada}[http://yokolet.blogspot.com]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * 'Software'), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED 'AS IS', WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package nokogiri.internals;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.transform.TransformerException;
+
+import org.apache.xml.utils.PrefixResolver;
+import org.apache.xpath.XPath;
+import org.jruby.util.SafePropertyAccessor;
+
+/**
+ * A bounded (LRU) cache of compiled XPath expressions.
+ *
+ * Compiled {@link XPath} objects hold no per-document state and are safe to
+ * execute concurrently, thus a single cache is shared JVM-wide.
+ * Expressions are keyed by their source text, the namespace bindings used
+ * to resolve prefixes at compile time and whether a function handler is bound.
+ *
+ * The default size might be changed using the <code>nokogiri.xpath.cache_size</code>
+ * system property (setting it to 0 disables caching).
+ */
+public final class NokogiriXPathCache {
+
+    static final int DEFAULT_MAX_SIZE = 512;
+
+    private static final NokogiriXPathCache INSTANCE = new NokogiriXPathCache(defaultMaxSize());
+
+    private static int defaultMaxSize() {
+        final String size = SafePropertyAccessor.getProperty("nokogiri.xpath.cache_size");
+        if (size != null) {
+            try { return Math.max(0, Integer.parseInt(size.trim())); }
+            catch (NumberFormatException ex) { /* use default */ }
+        }
+        return DEFAULT_MAX_SIZE;
+    }
+
+    public static NokogiriXPathCache getInstance() { return INSTANCE; }
+
+    private final LinkedHashMap<Key, XPath> cache;
+    private int maxSize;
+    private long hits, misses;
+
+    NokogiriXPathCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.cache = new LinkedHashMap<Key, XPath>(32, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, XPath> eldest) {
+                return size() > NokogiriXPathCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns a compiled expression, compiling (and caching) it on a miss.
+     *
+     * @param expr the (XPath) expression source
+     * @param nsContext namespace bindings the expression is compiled against
+     * @param prefixResolver resolver (backed by nsContext) used for compilation
+     * @param withHandler whether a (custom) function handler is bound
+     * @return compiled XPath
+     * @throws TransformerException when the expression is not valid
+     */
+    public XPath compile(final String expr, final NokogiriNamespaceContext nsContext,
+                         final PrefixResolver prefixResolver, final boolean withHandler)
+        throws TransformerException {
+        final Key key = new Key(expr, nsContext.getRegisteredNamespaces(), withHandler);
+        XPath xpath;
+        synchronized (this) {
+            xpath = cache.get(key);
+            if (xpath != null) {
+                hits++; return xpath;
+            }
+            misses++;
+        }
+        // compile outside of the lock, if two threads race the first one wins
+        xpath = new XPath(expr, null, prefixResolver, XPath.SELECT, null);
+        synchronized (this) {
+            if (maxSize > 0) cache.put(key, xpath);
+        }
+        return xpath;
+    }
+
+    public synchronized int getMaxSize() { return maxSize; }
+
+    public synchronized void setMaxSize(final int maxSize) {
+        if (maxSize < 0) throw new IllegalArgumentException("negative cache size: " + maxSize);
+        this.maxSize = maxSize;
+        if (cache.size() > maxSize) {
+            // evict (least recently used) entries exceeding the new limit
+            int excess = cache.size() - maxSize;
+            for (java.util.Iterator<Key> it = cache.keySet().iterator(); excess > 0; excess--) {
+                it.next(); it.remove();
+            }
+        }
+    }
+
+    public synchronized int size() { return cache.size(); }
+
+    public synchronized long getHits() { return hits; }
+
+    public synchronized long getMisses() { return misses; }
+
+    public synchronized void clear() {
+        cache.clear();
+        hits = misses = 0;
+    }
+
+    private static final class Key {
+
+        final String expr;
+        final Map<String, String> namespaces;
+        final boolean withHandler;
+        private final int hash;
+
+        Key(String expr, Map<String, String> namespaces, boolean withHandler) {
+            this.expr = expr;
+            this.namespaces = namespaces;
+            this.withHandler = withHandler;
+            this.hash = (expr.hashCode() * 31 + namespaces.hashCode()) * 31 + (withHandler ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof Key)) return false;
+            final Key that = (Key) obj;
+            return this.hash == that.hash && this.withHandler == that.withHandler &&
+                   this.expr.equals(that.expr) && this.namespaces.equals(that.namespaces);
+        }
+
+        @Override
+        public int hashCode() { return hash; }
+
+    }
+
+}
@@ -0,0 +1,109 @@
+/**
+ * (The MIT License)
+ *
+ * Copyright (c) 2008 - 2018:
+ *
+ * * {Aaron Patterson}[http://tenderlovemaking.com]
+ * * {Mike Dalessio}[http://mike.daless.io]
+ * * {Charles Nutter}[http://blog.headius.com]
+ * * {Sergio Arbeo}[http://www.serabe.com]
+ * * {Patrick Mahoney}[http://polycrystal.org]
+ * * {Yoko Harada}[http://yokolet.blogspot.com]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * 'Software'), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED 'AS IS', WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package nokogiri.internals;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPathFunction;
+import javax.xml.xpath.XPathFunctionResolver;
+
+import org.apache.xpath.jaxp.JAXPExtensionsProvider;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Extensions provider (owner) of a document's XPath context.
+ *
+ * The XPath context (and thus the DTM built for the document) is kept regardless of the function
+ * handler used, the handler's function resolver gets bound for each evaluation instead.
+ * Not thread-safe, same as the XPath context itself.
+ */
+public final class NokogiriXPathExtensionsProvider extends JAXPExtensionsProvider {
+
+    private static final int MAX_RESOLVERS = 4;
+
+    private final DelegatingResolver resolver;
+    // resolvers for recently used handlers (most recent first), these keep their resolved functions
+    private final NokogiriXPathFunctionResolver[] resolvers = new NokogiriXPathFunctionResolver[MAX_RESOLVERS];
+
+    public NokogiriXPathExtensionsProvider() {
+        this(new DelegatingResolver());
+    }
+
+    private NokogiriXPathExtensionsProvider(final DelegatingResolver resolver) {
+        super(resolver, false);
+        this.resolver = resolver;
+    }
+
+    /**
+     * Bind the function handler for an evaluation.
+     * @param handler the (Ruby) function handler, might be null
+     * @param refNode a node of the queried document
+     * @return the previously bound resolver, to be restored when the evaluation is done
+     * @see #restore(NokogiriXPathFunctionResolver)
+     */
+    public NokogiriXPathFunctionResolver bind(final IRubyObject handler, final IRubyObject refNode) {
+        final NokogiriXPathFunctionResolver previous = resolver.current;
+        if (previous.getHandler() != handler) resolver.current = resolverFor(handler, refNode);
+        return previous;
+    }
+
+    public void restore(final NokogiriXPathFunctionResolver previous) {
+        resolver.current = previous;
+    }
+
+    private NokogiriXPathFunctionResolver resolverFor(final IRubyObject handler, final IRubyObject refNode) {
+        if (handler == null) return DelegatingResolver.NO_HANDLER;
+        for (int i = 0; i < MAX_RESOLVERS; i++) {
+            final NokogiriXPathFunctionResolver cached = resolvers[i];
+            if (cached == null) break;
+            if (cached.getHandler() == handler) return cached;
+        }
+        final NokogiriXPathFunctionResolver fnResolver = NokogiriXPathFunctionResolver.create(handler, refNode);
+        System.arraycopy(resolvers, 0, resolvers, 1, MAX_RESOLVERS - 1); // the oldest one gets evicted
+        resolvers[0] = fnResolver;
+        return fnResolver;
+    }
+
+    private static final class DelegatingResolver implements XPathFunctionResolver {
+
+        static final NokogiriXPathFunctionResolver NO_HANDLER = NokogiriXPathFunctionResolver.create(null);
+
+        NokogiriXPathFunctionResolver current = NO_HANDLER;
+
+        public XPathFunction resolveFunction(QName name, int arity) {
+            return current.resolveFunction(name, arity);
+        }
+
+    }
+
+}
@@ -32,7 +32,11 @@
 
 package nokogiri.internals;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.xpath.XPathFunction;
 import javax.xml.xpath.XPathFunctionException;
@@ -47,14 +51,19 @@ import org.jruby.RubyFixnum;
 import org.jruby.RubyFloat;
 import org.jruby.RubyInteger;
 import org.jruby.RubyString;
+import org.jruby.internal.runtime.methods.DynamicMethod;
 import org.jruby.javasupport.JavaUtil;
-import org.jruby.javasupport.util.RuntimeHelpers;
 import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.callsite.CachingCallSite;
+import org.jruby.runtime.callsite.FunctionalCachingCallSite;
 import org.w3c.dom.NodeList;
 
 /**
  * Xpath function handler.
+ *
+ * Instances are cached (per handler) by the resolver, each holding a call-site
+ * (caching the handler class' method) and a re-usable argument array.
  * 
  * @author sergio
  * @author Yoko Harada <yokolet@gmail.com>
@@ -64,48 +73,79 @@ public class NokogiriXPathFunction implements XPathFunction {
     private final IRubyObject handler;
     private final String name;
     private final int arity;
+    private final IRubyObject refNode; // node-set arguments get their document from this node (if any)
+
+    private final CachingCallSite callSite;
+    private final boolean reuseArgs; // false if the method takes a variable number of arguments
+    private IRubyObject[] args; // re-used unless the call is re-entrant
+    private final Stats stats;
     
     public static NokogiriXPathFunction create(IRubyObject handler, String name, int arity) {
-        return new NokogiriXPathFunction(handler, name, arity);
+        return new NokogiriXPathFunction(handler, name, arity, null);
+    }
+
+    static NokogiriXPathFunction create(IRubyObject handler, String name, int arity, IRubyObject refNode) {
+        return new NokogiriXPathFunction(handler, name, arity, refNode);
     }
 
-    private NokogiriXPathFunction(IRubyObject handler, String name, int arity) {
+    private NokogiriXPathFunction(IRubyObject handler, String name, int arity, IRubyObject refNode) {
         this.handler = handler;
         this.name = name;
         this.arity = arity;
+        this.refNode = refNode;
+        this.callSite = new FunctionalCachingCallSite(name);
+        // arguments of a fixed arity method are bound to locals, thus the array is safe to re-use
+        DynamicMethod method = handler.getMetaClass().searchMethod(name);
+        this.reuseArgs = !method.isUndefined() && method.getArity().isFixed();
+        this.args = new IRubyObject[arity];
+        this.stats = Stats.get(handler.getMetaClass().getRealClass().getName() + '#' + name);
     }
 
+    final int getArity() { return arity; }
+
     public Object evaluate(List args) throws XPathFunctionException {
         if (args.size() != this.arity) {
             throw new XPathFunctionException("arity does not match");
         }
-        
+
+        final boolean timed = NokogiriXPathStats.getInstance().isEnabled();
+        final long start = timed ? System.nanoTime() : 0L;
         final Ruby runtime = this.handler.getRuntime();
         ThreadContext context = runtime.getCurrentContext();
 
-        IRubyObject result = RuntimeHelpers.invoke(context, this.handler, this.name, fromObjectToRubyArgs(runtime, args));
-
-        return fromRubyToObject(runtime, result);
+        IRubyObject[] rubyArgs = this.args;
+        if (rubyArgs == null || !reuseArgs) rubyArgs = new IRubyObject[this.arity];
+        else this.args = null; // in use, a re-entrant call allocates its own
+        try {
+            fromObjectToRubyArgs(runtime, args, rubyArgs);
+            IRubyObject result = callSite.call(context, this.handler, this.handler, rubyArgs);
+            return fromRubyToObject(runtime, result);
+        }
+        finally {
+            if (reuseArgs && this.args == null) {
+                Arrays.fill(rubyArgs, null); // do not retain arguments
+                this.args = rubyArgs;
+            }
+            if (timed) stats.add(System.nanoTime() - start);
+        }
     }
 
-    private static IRubyObject[] fromObjectToRubyArgs(final Ruby runtime, List args) {
-        IRubyObject[] newArgs = new IRubyObject[args.size()];
-        for(int i = 0; i < args.size(); i++) {
-            newArgs[i] = fromObjectToRuby(runtime, args.get(i));
+    private void fromObjectToRubyArgs(final Ruby runtime, List args, final IRubyObject[] rubyArgs) {
+        for(int i = 0; i < rubyArgs.length; i++) {
+            rubyArgs[i] = fromObjectToRuby(runtime, args.get(i));
         }
-        return newArgs;
     }
 
-    private static IRubyObject fromObjectToRuby(final Ruby runtime, Object obj) {
+    private IRubyObject fromObjectToRuby(final Ruby runtime, Object obj) {
         // argument object type is one of NodeList, String, Boolean, or Double.
         if (obj instanceof NodeList) {
             XmlNodeSet xmlNodeSet = XmlNodeSet.create(runtime);
-            xmlNodeSet.setNodeList((NodeList) obj);
+            // nodes get wrapped lazily, on access (the document is known upfront)
+            xmlNodeSet.setNodeList((NodeList) obj, refNode);
             return xmlNodeSet;
         }
         return JavaUtil.convertJavaToUsableRubyObject(runtime, obj);
     }
-
     private static Object fromRubyToObject(final Ruby runtime, IRubyObject obj) {
         if (obj instanceof RubyString) return obj.asJavaString();
         if (obj instanceof RubyBoolean) return obj.toJava(Boolean.class);
@@ -120,4 +160,55 @@ public class NokogiriXPathFunction implements XPathFunction {
         }
         /*if (o instanceof XmlNode)*/ return ((XmlNode) obj).getNode();
     }
+
+    /**
+     * Call counts and time spent (including argument and result conversion) per function,
+     * keyed by the handler class and method name e.g. <code>"MyHandler#regex"</code>.
+     * Counters are JVM-wide and never discarded, {@link #reset()} zeroes them. Calls are only recorded
+     * while XPath instrumentation is enabled (see {@link NokogiriXPathStats}).
+     */
+    public static final class Stats {
+
+        private static final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+
+        static Stats get(final String name) {
+            Stats stat = stats.get(name);
+            if (stat == null) {
+                final Stats prev = stats.putIfAbsent(name, stat = new Stats());
+                if (prev != null) stat = prev;
+            }
+            return stat;
+        }
+
+        /**
+         * @return a snapshot of the (called) function (handler class#name) to stats mapping
+         */
+        public static Map<String, Stats> getAll() {
+            final Map<String, Stats> all = new java.util.TreeMap<String, Stats>();
+            for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+                if (entry.getValue().getCalls() > 0) all.put(entry.getKey(), entry.getValue());
+            }
+            return all;
+        }
+
+        public static void reset() {
+            for (Stats stat : stats.values()) {
+                stat.calls.set(0); stat.nanos.set(0);
+            }
+        }
+
+        final void add(final long elapsed) {
+            calls.incrementAndGet();
+            nanos.addAndGet(elapsed);
+        }
+
+        public long getCalls() { return calls.get(); }
+
+        public long getNanos() { return nanos.get(); }
+
+    }
+
 }
@@ -32,6 +32,8 @@
 
 package nokogiri.internals;
 
+import java.util.HashMap;
+
 import javax.xml.namespace.QName;
 import javax.xml.xpath.XPathFunction;
 import javax.xml.xpath.XPathFunctionResolver;
@@ -40,6 +42,9 @@ import org.jruby.runtime.builtin.IRubyObject;
 
 /**
  * Xpath function resolver class, which is used in XmlXpathContext. 
+ *
+ * EXSLT (and Nokogiri's built-in) functions are resolved (by namespace) to their native
+ * implementations, other functions are dispatched to the (Ruby) handler, if any.
  * 
  * @author sergio
  * @author Yoko Harada <yokolet@gmail.com>
@@ -47,10 +52,23 @@ import org.jruby.runtime.builtin.IRubyObject;
 public final class NokogiriXPathFunctionResolver implements XPathFunctionResolver {
 
     private IRubyObject handler;
+    private IRubyObject refNode;
+    // Xalan resolves functions on each call, keep the (Ruby) functions resolved for the handler
+    private final HashMap<String, NokogiriXPathFunction> functions = new HashMap<String, NokogiriXPathFunction>(8);
     
     public static NokogiriXPathFunctionResolver create(IRubyObject handler) {
+        return create(handler, null);
+    }
+
+    /**
+     * @param handler the function handler (might be null)
+     * @param refNode a node from the queried document (node-set arguments will use its document)
+     * @return a resolver
+     */
+    public static NokogiriXPathFunctionResolver create(IRubyObject handler, IRubyObject refNode) {
         NokogiriXPathFunctionResolver freshResolver = new NokogiriXPathFunctionResolver();
         freshResolver.setHandler(handler);
+        freshResolver.refNode = refNode;
         return freshResolver;
     }
     
@@ -62,9 +80,21 @@ public final class NokogiriXPathFunctionResolver implements XPathFunctionResolve
 
     public void setHandler(IRubyObject handler) {
         this.handler = handler;
+        functions.clear();
     }
 
     public XPathFunction resolveFunction(QName name, int arity) {
-        return NokogiriXPathFunction.create(handler, name.getLocalPart(), arity);
+        final XPathFunction exslt = NokogiriExsltFunctions.resolve(name, arity);
+        if (exslt != null) return exslt;
+        final XPathFunction builtin = NokogiriXPathFunctions.resolve(name, arity);
+        if (builtin != null) return builtin;
+        if (handler == null) return null;
+        final String localName = name.getLocalPart();
+        NokogiriXPathFunction function = functions.get(localName);
+        if (function == null || function.getArity() != arity) {
+            function = NokogiriXPathFunction.create(handler, localName, arity, refNode);
+            functions.put(localName, function);
+        }
+        return function;
     }
 }
@@ -0,0 +1,157 @@
+/**
+ * (The MIT License)
+ *
+ * Copyright (c) 2008 - 2018:
+ *
+ * * {Aaron Patterson}[http://tenderlovemaking.com]
+ * * {Mike Dalessio}[http://mike.daless.io]
+ * * {Charles Nutter}[http://blog.headius.com]
+ * * {Sergio Arbeo}[http://www.serabe.com]
+ * * {Patrick Mahoney}[http://polycrystal.org]
+ * * {Yoko Harada}[http://yokolet.blogspot.com]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * 'Software'), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED 'AS IS', WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package nokogiri.internals;
+
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPathFunction;
+import javax.xml.xpath.XPathFunctionException;
+
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Native XPath functions, used in place of expensive XPath idioms (as generated from CSS selectors).
+ *
+ * These are namespaced (extension) functions resolved through {@link NokogiriXPathFunctionResolver},
+ * thus only available to expressions where {@link #NAMESPACE_URI} is bound to a prefix
+ * (XPath generated from CSS binds it as {@link #PREFIX}).
+ */
+public final class NokogiriXPathFunctions {
+
+    private NokogiriXPathFunctions() { /* no instances */ }
+
+    public static final String PREFIX = "nokogiri-builtin";
+    public static final String NAMESPACE_URI = "http://www.nokogiri.org/default_ns/ruby/builtins";
+
+    private static final int CSS_CLASS = 1;
+    private static final int CHILD_INDEX = 2;
+    private static final int LAST_CHILD_INDEX = 3;
+
+    private static final Function CSS_CLASS_FUNCTION = new Function(CSS_CLASS, 2);
+    private static final Function CHILD_INDEX_FUNCTION = new Function(CHILD_INDEX, 1);
+    private static final Function LAST_CHILD_INDEX_FUNCTION = new Function(LAST_CHILD_INDEX, 1);
+
+    /**
+     * @param name the (namespaced) function name
+     * @param arity number of arguments
+     * @return the function or null if the name is not a built-in function (with the given arity)
+     */
+    public static XPathFunction resolve(final QName name, final int arity) {
+        if (!NAMESPACE_URI.equals(name.getNamespaceURI())) return null;
+        final Function function;
+        final String localName = name.getLocalPart();
+        if ("css-class".equals(localName)) function = CSS_CLASS_FUNCTION;
+        else if ("child-index".equals(localName)) function = CHILD_INDEX_FUNCTION;
+        else if ("last-child-index".equals(localName)) function = LAST_CHILD_INDEX_FUNCTION;
+        else return null;
+        return function.arity == arity ? function : null;
+    }
+
+    private static final class Function implements XPathFunction {
+
+        final int id;
+        final int arity;
+
+        Function(int id, int arity) {
+            this.id = id; this.arity = arity;
+        }
+
+        @SuppressWarnings("rawtypes") // XPathFunction API
+        public Object evaluate(final List args) throws XPathFunctionException {
+            switch (id) {
+                case CSS_CLASS :
+                    return containsToken(string(args.get(0)), string(args.get(1)));
+                case CHILD_INDEX :
+                    return childIndex(node(args.get(0)), false);
+                case LAST_CHILD_INDEX :
+                    return childIndex(node(args.get(0)), true);
+            }
+            throw new XPathFunctionException("unknown function: " + id);
+        }
+
+    }
+
+    /**
+     * <code>css-class(string, token)</code> whether the white-space separated
+     * list of tokens contains the given token, same as :
+     * <code>contains(concat(' ', normalize-space(string), ' '), concat(' ', token, ' '))</code>
+     */
+    static boolean containsToken(final String value, final String token) {
+        final int len = token.length();
+        if (len == 0) return false;
+        for (int i = value.indexOf(token); i != -1; i = value.indexOf(token, i + 1)) {
+            if ((i == 0 || isWhitespace(value.charAt(i - 1))) &&
+                (i + len == value.length() || isWhitespace(value.charAt(i + len)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * <code>child-index(node)</code> the (1-based) position of the node amongst its element siblings,
+     * same as : <code>count(preceding-sibling::*) + 1</code> (or <code>following-sibling::*</code> when last)
+     */
+    static double childIndex(final Node node, final boolean last) {
+        if (node == null) return Double.NaN;
+        int index = 1;
+        Node sib = last ? node.getNextSibling() : node.getPreviousSibling();
+        for ( ; sib != null; sib = last ? sib.getNextSibling() : sib.getPreviousSibling()) {
+            if (sib.getNodeType() == Node.ELEMENT_NODE) index++;
+        }
+        return index;
+    }
+
+    private static Node node(final Object arg) throws XPathFunctionException {
+        if (arg instanceof NodeList) return ((NodeList) arg).item(0);
+        throw new XPathFunctionException("argument is not a node-set");
+    }
+
+    private static String string(final Object arg) {
+        if (arg instanceof NodeList) { // e.g. @class
+            final Node node = ((NodeList) arg).item(0);
+            if (node == null) return "";
+            final String value = node.getNodeType() == Node.ATTRIBUTE_NODE ? node.getNodeValue() : node.getTextContent();
+            return value == null ? "" : value;
+        }
+        return String.valueOf(arg);
+    }
+
+    private static boolean isWhitespace(final char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+}
@@ -0,0 +1,357 @@
+/**
+ * (The MIT License)
+ *
+ * Copyright (c) 2008 - 2018:
+ *
+ * * {Aaron Patterson}[http://tenderlovemaking.com]
+ * * {Mike Dalessio}[http://mike.daless.io]
+ * * {Charles Nutter}[http://blog.headius.com]
+ * * {Sergio Arbeo}[http://www.serabe.com]
+ * * {Patrick Mahoney}[http://polycrystal.org]
+ * * {Yoko Harada}[http://yokolet.blogspot.com]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * 'Software'), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED 'AS IS', WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package nokogiri.internals;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.xml.dtm.ref.dom2dtm.DOM2DTMExt;
+import org.jruby.util.SafePropertyAccessor;
+import org.w3c.dom.Node;
+
+/**
+ * Opt-in XPath instrumentation (JVM-wide) : per-expression evaluation counts, phase timings,
+ * result sizes, DTM nodes visited/built and DTM (re)build events.
+ *
+ * Disabled by default (set the <code>nokogiri.xpath.instrumentation</code> system property or
+ * enable at runtime), when disabled evaluation only pays for a (volatile) flag check.
+ * Once enabled the stats are also available over JMX as <code>nokogiri:type=XPathStats</code>.
+ */
+public final class NokogiriXPathStats implements DOM2DTMExt.Instrumentation, NokogiriXPathStatsMBean {
+
+    public static final String OBJECT_NAME = "nokogiri:type=XPathStats";
+
+    private static final int MAX_EXPRESSIONS = 1024;
+    private static final String OTHER_EXPRESSIONS = "(other)";
+    private static final int MAX_DTM_EVENTS = 32;
+
+    private static final NokogiriXPathStats instance = new NokogiriXPathStats();
+
+    private static volatile boolean enabled;
+
+    static {
+        if (Boolean.parseBoolean(SafePropertyAccessor.getProperty("nokogiri.xpath.instrumentation"))) {
+            instance.setEnabled(true);
+        }
+    }
+
+    public static NokogiriXPathStats getInstance() { return instance; }
+
+    public boolean isEnabled() { return enabled; }
+
+    public synchronized void setEnabled(final boolean enable) {
+        enabled = enable;
+        DOM2DTMExt.setInstrumentation(enable ? this : null);
+        if (enable) registerMBean();
+    }
+
+    private final ConcurrentHashMap<String, ExpressionStats> expressions = new ConcurrentHashMap<String, ExpressionStats>();
+
+    private final AtomicLong dtmsCreated = new AtomicLong();
+    private final AtomicLong dtmsBuilt = new AtomicLong();
+    private final AtomicLong dtmsReleased = new AtomicLong();
+    private final AtomicLong dtmsInvalidated = new AtomicLong();
+    private final ArrayDeque<DTMEvent> dtmEvents = new ArrayDeque<DTMEvent>(MAX_DTM_EVENTS);
+
+    private final ThreadLocal<Evaluation> current = new ThreadLocal<Evaluation>();
+
+    private boolean registered;
+
+    private NokogiriXPathStats() { /* singleton */ }
+
+    private void registerMBean() {
+        if (registered) return;
+        registered = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        }
+        catch (Exception ex) { /* already registered (by another class-loader) or not permitted */ }
+        catch (LinkageError ex) { /* JMX not available */ }
+    }
+
+    /**
+     * Start recording an evaluation.
+     * @param expr the expression (source)
+     * @return the evaluation or null when instrumentation is disabled
+     */
+    public static Evaluation start(final String expr) {
+        if (!enabled) return null;
+        final Evaluation eval = new Evaluation(expr, instance.current.get());
+        instance.current.set(eval);
+        return eval;
+    }
+
+    /**
+     * A single expression evaluation, phases are marked by the evaluating code.
+     */
+    public static final class Evaluation {
+
+        final String expr;
+        private final Evaluation parent; // nested evaluation (from a function handler)
+        private long mark;
+        long compile, execute, iterate, wrap;
+        long nodesVisited, nodesBuilt;
+        private int results;
+
+        Evaluation(final String expr, final Evaluation parent) {
+            this.expr = expr; this.parent = parent;
+            this.mark = System.nanoTime();
+        }
+
+        private long lap() {
+            final long now = System.nanoTime();
+            final long elapsed = now - mark;
+            mark = now;
+            return elapsed;
+        }
+
+        public void compiled() { compile += lap(); }
+
+        public void executed() { execute += lap(); }
+
+        public void iterated() { iterate += lap(); }
+
+        public void wrapped(final int results) {
+            wrap += lap();
+            this.results = results;
+        }
+
+        /**
+         * Record the evaluation (always to be called, in a finally block).
+         */
+        public void end() {
+            instance.current.set(parent);
+            instance.expressionStats(expr).add(this);
+        }
+
+    }
+
+    private ExpressionStats expressionStats(String expr) {
+        ExpressionStats stats = expressions.get(expr);
+        if (stats == null) {
+            if (expressions.size() >= MAX_EXPRESSIONS) expr = OTHER_EXPRESSIONS;
+            stats = new ExpressionStats();
+            final ExpressionStats prev = expressions.putIfAbsent(expr, stats);
+            if (prev != null) stats = prev;
+        }
+        return stats;
+    }
+
+    /**
+     * Accumulated stats for an expression.
+     */
+    public static final class ExpressionStats {
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong compile = new AtomicLong(), execute = new AtomicLong();
+        private final AtomicLong iterate = new AtomicLong(), wrap = new AtomicLong();
+        private final AtomicLong results = new AtomicLong();
+        private final AtomicLong nodesVisited = new AtomicLong(), nodesBuilt = new AtomicLong();
+
+        void add(final Evaluation eval) {
+            count.incrementAndGet();
+            compile.addAndGet(eval.compile); execute.addAndGet(eval.execute);
+            iterate.addAndGet(eval.iterate); wrap.addAndGet(eval.wrap);
+            results.addAndGet(eval.results);
+            nodesVisited.addAndGet(eval.nodesVisited); nodesBuilt.addAndGet(eval.nodesBuilt);
+        }
+
+        public long getCount() { return count.get(); }
+        public long getCompileNanos() { return compile.get(); }
+        public long getExecuteNanos() { return execute.get(); }
+        public long getIterateNanos() { return iterate.get(); }
+        public long getWrapNanos() { return wrap.get(); }
+        public long getResults() { return results.get(); }
+        public long getNodesVisited() { return nodesVisited.get(); }
+        public long getNodesBuilt() { return nodesBuilt.get(); }
+
+        public long getTotalNanos() {
+            return getCompileNanos() + getExecuteNanos() + getIterateNanos() + getWrapNanos();
+        }
+
+    }
+
+    /**
+     * @return a snapshot of the expression to stats mapping (sorted by expression)
+     */
+    public Map<String, ExpressionStats> getExpressionStats() {
+        return new TreeMap<String, ExpressionStats>(expressions);
+    }
+
+    // DOM2DTMExt.Instrumentation (called only while enabled)
+
+    public void nodeVisited(final DOM2DTMExt dtm) {
+        if (!enabled) return; // DTM created while enabled
+        final Evaluation eval = current.get();
+        if (eval != null) eval.nodesVisited++;
+    }
+
+    public void nodeAdded(final DOM2DTMExt dtm) {
+        final Evaluation eval = current.get();
+        if (eval != null) eval.nodesBuilt++;
+    }
+
+    public void built(final DOM2DTMExt dtm) {
+        dtmsBuilt.incrementAndGet();
+        addEvent(new DTMEvent("built", dtm.getRootNode(), dtm.getNumberOfNodes()));
+    }
+
+    // XalanDTMManagerPatch notifications
+
+    static void dtmCreated(final DOM2DTMExt dtm) {
+        if (!enabled) return;
+        instance.dtmsCreated.incrementAndGet();
+        instance.addEvent(new DTMEvent("created", dtm.getRootNode(), 0));
+    }
+
+    static void dtmInvalidated(final DOM2DTMExt dtm) {
+        if (!enabled) return;
+        instance.dtmsInvalidated.incrementAndGet();
+        instance.addEvent(new DTMEvent("invalidated", dtm.getRootNode(), dtm.getNumberOfNodes()));
+    }
+
+    static void dtmReleased(final DOM2DTMExt dtm) {
+        if (!enabled) return;
+        instance.dtmsReleased.incrementAndGet();
+        instance.addEvent(new DTMEvent("released", dtm.getRootNode(), dtm.getNumberOfNodes()));
+    }
+
+    private void addEvent(final DTMEvent event) {
+        synchronized (dtmEvents) {
+            if (dtmEvents.size() == MAX_DTM_EVENTS) dtmEvents.removeFirst();
+            dtmEvents.addLast(event);
+        }
+    }
+
+    /**
+     * A DTM life-cycle event, size is the number of DTM nodes (built so far).
+     */
+    public static final class DTMEvent {
+
+        public final String type;
+        public final String root;
+        public final int size;
+        public final long time = System.currentTimeMillis();
+
+        DTMEvent(String type, Node root, int size) {
+            this.type = type;
+            this.root = root == null ? null : root.getNodeName();
+            this.size = size;
+        }
+
+        @Override
+        public String toString() {
+            return type + ' ' + root + " (" + size + " nodes)";
+        }
+
+    }
+
+    /**
+     * @return most recent DTM events (oldest first)
+     */
+    public List<DTMEvent> getDTMEvents() {
+        synchronized (dtmEvents) {
+            return new ArrayList<DTMEvent>(dtmEvents);
+        }
+    }
+
+    public long getDTMsCreated() { return dtmsCreated.get(); }
+
+    public long getDTMsBuilt() { return dtmsBuilt.get(); }
+
+    public long getDTMsReleased() { return dtmsReleased.get(); }
+
+    public long getDTMsInvalidated() { return dtmsInvalidated.get(); }
+
+    public long getEvaluations() {
+        long count = 0;
+        for (ExpressionStats stats : expressions.values()) count += stats.getCount();
+        return count;
+    }
+
+    public double getEvaluationTime() {
+        long nanos = 0;
+        for (ExpressionStats stats : expressions.values()) nanos += stats.getTotalNanos();
+        return nanos / 1e9;
+    }
+
+    public int getExpressionCount() { return expressions.size(); }
+
+    public String[] getSlowestExpressions() {
+        final List<Map.Entry<String, ExpressionStats>> entries =
+            new ArrayList<Map.Entry<String, ExpressionStats>>(expressions.entrySet());
+        java.util.Collections.sort(entries, new java.util.Comparator<Map.Entry<String, ExpressionStats>>() {
+            public int compare(Map.Entry<String, ExpressionStats> e1, Map.Entry<String, ExpressionStats> e2) {
+                final long t1 = e1.getValue().getTotalNanos(), t2 = e2.getValue().getTotalNanos();
+                return t1 < t2 ? 1 : (t1 == t2 ? 0 : -1);
+            }
+        });
+        final int size = Math.min(entries.size(), 20);
+        final String[] slowest = new String[size];
+        for (int i = 0; i < size; i++) {
+            final ExpressionStats stats = entries.get(i).getValue();
+            slowest[i] = entries.get(i).getKey() + " : " + stats.getCount() + " calls, " +
+                         (stats.getTotalNanos() / 1000000) + "ms";
+        }
+        return slowest;
+    }
+
+    public String[] getRecentDTMEvents() {
+        final List<DTMEvent> events = getDTMEvents();
+        final String[] recent = new String[events.size()];
+        for (int i = 0; i < recent.length; i++) recent[i] = events.get(i).toString();
+        return recent;
+    }
+
+    public long getExpressionCacheHits() { return NokogiriXPathCache.getInstance().getHits(); }
+
+    public long getExpressionCacheMisses() { return NokogiriXPathCache.getInstance().getMisses(); }
+
+    public int getExpressionCacheSize() { return NokogiriXPathCache.getInstance().size(); }
+
+    public void reset() {
+        expressions.clear();
+        dtmsCreated.set(0); dtmsBuilt.set(0); dtmsReleased.set(0); dtmsInvalidated.set(0);
+        synchronized (dtmEvents) { dtmEvents.clear(); }
+    }
+
+}
@@ -33,8 +33,15 @@ package nokogiri.internals;
 
 import java.util.HashMap;
 import javax.xml.namespace.QName;
+import javax.xml.transform.TransformerException;
 import javax.xml.xpath.XPathVariableResolver;
 
+import org.apache.xalan.res.XSLMessages;
+import org.apache.xpath.VariableStack;
+import org.apache.xpath.XPathContext;
+import org.apache.xpath.objects.XObject;
+import org.apache.xpath.res.XPATHErrorResources;
+
 /**
  * XPath variable support
  * 
@@ -57,4 +64,42 @@ public class NokogiriXPathVariableResolver implements XPathVariableResolver {
     public void registerVariable(String name,String value){
         variables.put(new QName(name),value);
     }
+
+    private VariableStack variableStack;
+
+    /**
+     * A variable stack to be set on a (shared) XPathContext while evaluating.
+     * Unlike JAXPVariableStack this one does not pre-allocate (unused) stack frames.
+     * @return a stack resolving variables from this resolver
+     */
+    public VariableStack getVariableStack() {
+        VariableStack variableStack = this.variableStack;
+        if (variableStack == null) {
+            variableStack = this.variableStack = new ResolverVariableStack(this);
+        }
+        return variableStack;
+    }
+
+    private static final class ResolverVariableStack extends VariableStack {
+
+        private final XPathVariableResolver resolver;
+
+        ResolverVariableStack(XPathVariableResolver resolver) {
+            super(1); // (global) variables only, no local frames needed
+            this.resolver = resolver;
+        }
+
+        @Override
+        public XObject getVariableOrParam(XPathContext xctxt, org.apache.xml.utils.QName qname)
+            throws TransformerException {
+            QName name = new QName(qname.getNamespace(), qname.getLocalPart());
+            Object value = resolver.resolveVariable(name);
+            if (value == null) {
+                String msg = XSLMessages.createXPATHMessage(XPATHErrorResources.ER_RESOLVE_VARIABLE_RETURNS_NULL, new Object[] { name.toString() });
+                throw new TransformerException(msg);
+            }
+            return XObject.create(value, xctxt);
+        }
+
+    }
 }
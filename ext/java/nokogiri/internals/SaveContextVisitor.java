@@ -33,7 +33,6 @@
 package nokogiri.internals;
 
 import static nokogiri.internals.NokogiriHelpers.canonicalizeWhitespace;
-import static nokogiri.internals.NokogiriHelpers.encodeJavaString;
 import static nokogiri.internals.NokogiriHelpers.isNamespace;
 import static nokogiri.internals.NokogiriHelpers.isWhitespaceText;
 
@@ -70,6 +69,7 @@ public class SaveContextVisitor {
     private final StringBuilder buffer;
     private final Stack<String> indentation;
     private String encoding;
+    private CharsetEncoder encoder;
     private final CharSequence indentString;
     private boolean format;
     private final boolean noDecl;
@@ -155,6 +155,7 @@ public class SaveContextVisitor {
 
     public void setEncoding(String encoding) {
         this.encoding = encoding;
+        this.encoder = null;
     }
 
     public boolean enter(Node node) {
@@ -256,7 +257,7 @@ public class SaveContextVisitor {
             buffer.append('=');
             buffer.append('"');
             String value = replaceCharsetIfNecessary(attr);
-            buffer.append(serializeAttrTextContent(value, htmlDoc));
+            if (value != null) (htmlDoc ? NokogiriEscaper.HTML_ATTRIBUTE : NokogiriEscaper.ATTRIBUTE).escape(value, buffer);
             buffer.append('"');
         }
         return true;
@@ -290,29 +291,6 @@ public class SaveContextVisitor {
         return HTML_BOOLEAN_ATTRS.contains(name);
     }
 
-    private static CharSequence serializeAttrTextContent(String str, boolean htmlDoc) {
-        if (str == null || str.length() == 0) return "";
-
-        StringBuilder buffer = new StringBuilder(str.length() + 16);
-
-        for (int i = 0; i < str.length(); i++) {
-            char c; switch (c = str.charAt(i)) {
-                case '\n': buffer.append("&#10;"); break;
-                case '\r': buffer.append("&#13;"); break;
-                case '\t': buffer.append("&#9;"); break;
-                case '"': if (htmlDoc) buffer.append("%22");
-                else buffer.append("&quot;");
-                    break;
-                case '<': buffer.append("&lt;"); break;
-                case '>': buffer.append("&gt;"); break;
-                case '&': buffer.append("&amp;"); break;
-                default: buffer.append(c);
-            }
-        }
-
-        return buffer;
-    }
-
     public void leave(Attr attr) {
         // no-op
     }
@@ -743,35 +721,21 @@ public class SaveContextVisitor {
             }
         }
 
-        if (NokogiriHelpers.shouldEncode(text) && !isHtmlScript(text) && !isHtmlStyle(text)) {
-            textContent = encodeJavaString(textContent);
+        NokogiriEscaper escaper = NokogiriEscaper.NONE;
+        // checking whether to escape (node's user data) only if there's something to escape
+        if (NokogiriEscaper.TEXT.indexOf(textContent, 0) != -1) {
+            if (NokogiriHelpers.shouldEncode(text) && !isHtmlScript(text) && !isHtmlStyle(text)) {
+                escaper = NokogiriEscaper.TEXT;
+            }
         }
-
-        textContent = encodeStringToHtmlEntity(textContent);
-        buffer.append(textContent);
+        escaper.escape(textContent, buffer, getEncoder());
         return true;
     }
 
-    private CharSequence encodeStringToHtmlEntity(CharSequence text) {
-        if (encoding == null) return text;
-
-        CharsetEncoder encoder = Charset.forName(encoding).newEncoder();
-        StringBuilder sb = new StringBuilder(text.length() + 16);
-        // make sure we can handle code points that are higher than 2 bytes
-        for ( int i = 0; i < text.length(); ) {
-            int code = Character.codePointAt(text, i);
-            // TODO not sure about bigger offset then 2 ?!
-            int offset = code > 65535 ? 2 : 1;
-            CharSequence substr = text.subSequence(i, i + offset);
-            boolean canEncode = encoder.canEncode(substr);
-            if (canEncode) {
-                sb.append(substr);
-            }
-            else {
-                sb.append("&#x").append(Integer.toHexString(code)).append(';');
-            }
-            i += offset;
-        }
-        return sb;
+    // encoder of the output encoding, characters it can not encode are written as character references
+    private CharsetEncoder getEncoder() {
+        if (encoding == null) return null;
+        if (encoder == null) encoder = Charset.forName(encoding).newEncoder();
+        return encoder;
     }
 }
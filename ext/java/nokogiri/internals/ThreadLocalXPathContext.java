@@ -0,0 +1,111 @@
+/**
+ * (The MIT License)
+ *
+ * Copyright (c) 2008 - 2018:
+ *
+ * * {Aaron Patterson}[http://tenderlovemaking.com]
+ * * {Mike Dalessio}[http://mike.daless.io]
+ * * {Charles Nutter}[http://blog.headius.com]
+ * * {Sergio Arbeo}[http://www.serabe.com]
+ * * {Patrick Mahoney}[http://polycrystal.org]
+ * * {Yoko Harada}[http://yokolet.blogspot.com]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * 'Software'), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED 'AS IS', WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package nokogiri.internals;
+
+import org.apache.xml.dtm.DTM;
+import org.apache.xml.dtm.DTMManager;
+import org.apache.xml.dtm.ref.dom2dtm.DOM2DTMExt;
+import org.apache.xpath.XPathContext;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * XPath contexts for a read-only document, one per thread.
+ *
+ * The document's DTM gets completely built upfront and is shared (read-only)
+ * by all the per-thread contexts, thus queries might run concurrently without
+ * re-building the DTM for each thread.
+ */
+public final class ThreadLocalXPathContext extends ThreadLocal<XPathContext> {
+
+    private final DOM2DTMExt dtm; // null if DTMs are not ours (each thread builds its own)
+
+    /**
+     * @param document the (read-only) document
+     * @param xpathContext a context used to build the DTM, will not be used afterwards
+     */
+    public ThreadLocalXPathContext(final Node document, final XPathContext xpathContext) {
+        expandNodes(document);
+
+        final int handle = xpathContext.getDTMHandleFromNode(document);
+        final DTM dtm = xpathContext.getDTM(handle);
+        if (dtm instanceof DOM2DTMExt) {
+            ((DOM2DTMExt) dtm).buildAll();
+            this.dtm = (DOM2DTMExt) dtm;
+        }
+        else {
+            this.dtm = null;
+        }
+    }
+
+    /**
+     * (Deferred) DOM nodes get expanded lazily on first access, which is not thread-safe.
+     */
+    private static void expandNodes(final Node root) {
+        Node node = root;
+        while (node != null) {
+            node.getNodeValue();
+            final NamedNodeMap attrs = node.getAttributes();
+            if (attrs != null) {
+                for (int i = 0; i < attrs.getLength(); i++) attrs.item(i).getNodeValue();
+            }
+
+            Node next = node.getFirstChild();
+            while (next == null && node != root) {
+                next = node.getNextSibling();
+                if (next == null) node = node.getParentNode();
+            }
+            node = next;
+        }
+    }
+
+    @Override
+    protected XPathContext initialValue() {
+        return share(new XPathContext(new NokogiriXPathExtensionsProvider(), false));
+    }
+
+    /**
+     * Make the shared DTM available to the given context.
+     * @param xpathContext a new XPath context
+     * @return the context
+     */
+    public XPathContext share(final XPathContext xpathContext) {
+        final DTMManager dtmManager = xpathContext.getDTMManager();
+        if (dtm != null && dtmManager instanceof XalanDTMManagerPatch) {
+            ((XalanDTMManagerPatch) dtmManager).addSharedDTM(dtm);
+        }
+        return xpathContext;
+    }
+
+}
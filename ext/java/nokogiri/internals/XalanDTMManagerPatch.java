@@ -24,8 +24,15 @@ import org.apache.xml.dtm.DTMWSFilter;
 import org.apache.xml.dtm.ref.dom2dtm.DOM2DTMExt;
 import org.apache.xml.res.XMLErrorResources;
 import org.apache.xml.res.XMLMessages;
+import org.apache.xml.utils.SuballocatedIntVector;
+import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
 import javax.xml.transform.dom.DOMSource;
 
 /**
@@ -33,6 +40,40 @@ import javax.xml.transform.dom.DOMSource;
  */
 public final class XalanDTMManagerPatch extends org.apache.xml.dtm.ref.DTMManagerDefault {
 
+    /**
+     * (sub-)tree root node -> the DTM built for it, keys are compared by identity
+     * (DOM nodes do not override equals/hashCode) and held weakly as well as the DTMs.
+     * DTMs are strongly reachable from {@link #m_dtms} until released.
+     */
+    private final Map<Node, WeakReference<DOM2DTMExt>> dtmsByRoot = new WeakHashMap<Node, WeakReference<DOM2DTMExt>>(8);
+
+    private static final int MAX_DETACHED_DTMS = 16;
+
+    /**
+     * DTMs built for detached sub-trees (and fragments), in creation order.
+     * We have no way of telling whether these are still used, only the most recent ones are kept.
+     */
+    private final ArrayDeque<DOM2DTMExt> detachedDTMs = new ArrayDeque<DOM2DTMExt>(MAX_DETACHED_DTMS);
+
+    private static final String RESULT_DOCUMENT = "NOKOGIRI_RESULT_DOCUMENT";
+
+    /**
+     * DTMs built for (extension) function result documents, in creation order.
+     * Kept apart from detached ones, for function results not to evict these.
+     */
+    private final ArrayDeque<DOM2DTMExt> resultDTMs = new ArrayDeque<DOM2DTMExt>(MAX_DETACHED_DTMS);
+
+    /**
+     * Nokogiri: mark a document as holding (only) an extension function's result,
+     * the DTM built for it is released once no longer among the most recent ones.
+     * @param doc
+     */
+    static void markResultDocument(final Document doc) {
+        doc.setUserData(RESULT_DOCUMENT, Boolean.TRUE, null);
+    }
+
+    private DOM2DTMExt sharedDTM; // owned by another manager (never released)
+
     /**
      * Given a W3C DOM node, try and return a DTM handle.
      * Note: calling this may be non-optimal, and there is no guarantee that
@@ -52,30 +93,25 @@ public final class XalanDTMManagerPatch extends org.apache.xml.dtm.ref.DTMManage
             return ((org.apache.xml.dtm.ref.DTMNodeProxy) node).getDTMNodeNumber();
         }
 
-        // Find the DOM2DTMs wrapped around this Document (if any)
-        // and check whether they contain the Node in question.
-        //
-        // NOTE that since a DOM2DTM may represent a subtree rather
-        // than a full document, we have to be prepared to check more
-        // than one -- and there is no guarantee that we will find
-        // one that contains ancestors or siblings of the node we're
-        // seeking.
-        //
-        // %REVIEW% We could search for the one which contains this
-        // node at the deepest level, and thus covers the widest
-        // subtree, but that's going to entail additional work
-        // checking more DTMs... and getHandleOfNode is not a
-        // cheap operation in most implementations.
-        //
-        // TODO: %REVIEW% If overflow addressing, we may recheck a DTM
-        // already examined. Ouch. But with the increased number of DTMs,
-        // scanning back to check this is painful.
-        // POSSIBLE SOLUTIONS:
-        //   Generate a list of _unique_ DTM objects?
-        //   Have each DTM cache last DOM node search?
+        // Since the real root of our tree may be a DocumentFragment, we need to
+        // use getParent to find the root, instead of getOwnerDocument.  Otherwise
+        // DOM2DTM#getHandleOfNode will be very unhappy.
+        Node root = getRoot(node); int rootType;
+
+        // Nokogiri: DOM2DTMs wrapped around the (sub-)tree are looked up by its root,
+        // instead of asking every DTM whether it contains the node in question.
+        DOM2DTMExt indexed = getIndexedDTM(root);
+        if (indexed != null) {
+            int handle = indexed.getHandleOfNode(node);
+            if (handle != DTM.NULL) {
+                return handle;
+            }
+        }
+
         for(int i = 0; i < m_dtms.length; i++) {
             DTM thisDTM = m_dtms[i];
-            if (thisDTM instanceof org.apache.xml.dtm.ref.dom2dtm.DOM2DTM) {
+            // NOTE: our own DTMs are all indexed, others (e.g. XSLT built) need to be scanned
+            if (thisDTM instanceof org.apache.xml.dtm.ref.dom2dtm.DOM2DTM && !(thisDTM instanceof DOM2DTMExt)) {
                 int handle = ((org.apache.xml.dtm.ref.dom2dtm.DOM2DTM) thisDTM).getHandleOfNode(node);
                 if (handle != DTM.NULL) {
                     return handle;
@@ -99,13 +135,6 @@ public final class XalanDTMManagerPatch extends org.apache.xml.dtm.ref.DTMManage
         // be resynthesized). Another reason to push hard on making all DTMs
         // be managed DTMs.
 
-        // Since the real root of our tree may be a DocumentFragment, we need to
-        // use getParent to find the root, instead of getOwnerDocument.  Otherwise
-        // DOM2DTM#getHandleOfNode will be very unhappy.
-        Node root = node; int rootType = root.getNodeType();
-        Node p = (rootType == Node.ATTRIBUTE_NODE) ? ((org.w3c.dom.Attr) root).getOwnerElement() : root.getParentNode();
-        for (; p != null; p = p.getParentNode()) root = p;
-
         // DOM2DTM dtm = (DOM2DTM) getDTM(new DOMSource(root), false, null);
         DOM2DTMExt dtm = getDTMExt(new DOMSource(root), false, null/*, true, true*/);
 
@@ -153,7 +182,91 @@ public final class XalanDTMManagerPatch extends org.apache.xml.dtm.ref.DTMManage
         return handle;
     }
 
+    /**
+     * Nokogiri: to be notified on (structural) DOM changes.
+     * DTMs built for the changed (sub-)tree are kept as long as they're able to follow
+     * the change, otherwise they get released (and re-built on demand).
+     *
+     * @param node the changed node (or an inserted one)
+     * @param inserted whether the node has just been inserted
+     * @see DOM2DTMExt#isMutationTolerated(Node, boolean)
+     */
+    public void nodeChanged(final Node node, final boolean inserted) {
+        final DOM2DTMExt dtm = getIndexedDTM(getRoot(node));
+        if (dtm != null && !dtm.isMutationTolerated(node, inserted)) {
+            NokogiriXPathStats.dtmInvalidated(dtm);
+            release(dtm, true);
+        }
+        if (inserted) { // a (detached) sub-tree got attached - its DTM is no longer reachable
+            final DOM2DTMExt subtreeDTM = getIndexedDTM(node);
+            if (subtreeDTM != null) release(subtreeDTM, true);
+        }
+    }
+
+    /**
+     * Nokogiri: register a (completely built) DTM of another manager, the DTM is read-only
+     * from here on and gets the same DTM identities - its node handles are the same for both managers.
+     *
+     * @param dtm the DTM to share
+     * @see ThreadLocalXPathContext
+     */
+    public synchronized void addSharedDTM(final DOM2DTMExt dtm) {
+        final SuballocatedIntVector ids = dtm.getDTMIDs();
+        for (int i = 0; i < ids.size(); i++) {
+            addDTM(dtm, ids.elementAt(i) >>> IDENT_DTM_NODE_BITS, i << IDENT_DTM_NODE_BITS);
+        }
+        dtmsByRoot.put(dtm.getRootNode(), new WeakReference<DOM2DTMExt>(dtm));
+        sharedDTM = dtm;
+    }
+
+    @Override
+    public synchronized boolean release(DTM dtm, boolean shouldHardDelete) {
+        if (dtm == sharedDTM) return false;
+        if (dtm instanceof DOM2DTMExt) {
+            NokogiriXPathStats.dtmReleased((DOM2DTMExt) dtm);
+            ((DOM2DTMExt) dtm).markReleased();
+            final Node root = ((DOM2DTMExt) dtm).getRootNode();
+            if (getIndexedDTM(root) == dtm) dtmsByRoot.remove(root);
+            detachedDTMs.remove(dtm);
+            resultDTMs.remove(dtm);
+        }
+        return super.release(dtm, shouldHardDelete);
+    }
+
+    private DOM2DTMExt getIndexedDTM(final Node root) {
+        final WeakReference<DOM2DTMExt> ref = dtmsByRoot.get(root);
+        return ref == null ? null : ref.get();
+    }
+
+    /**
+     * Releases DTMs which can no longer be looked up - built for a (detached) sub-tree
+     * that has been attached since or superseded by another DTM for the same root.
+     */
+    private void releaseStaleDTMs() {
+        for (int i = 0; i < m_dtms.length; i++) {
+            final DTM thisDTM = m_dtms[i];
+            if (thisDTM instanceof DOM2DTMExt) {
+                final Node root = ((DOM2DTMExt) thisDTM).getRootNode();
+                if (getIndexedDTM(root) != thisDTM || getRoot(root) != root) {
+                    release(thisDTM, true);
+                }
+            }
+        }
+        for (Iterator<WeakReference<DOM2DTMExt>> it = dtmsByRoot.values().iterator(); it.hasNext(); ) {
+            if (it.next().get() == null) it.remove();
+        }
+    }
+
+    private static Node getRoot(final Node node) {
+        Node root = node;
+        Node p = (root.getNodeType() == Node.ATTRIBUTE_NODE) ? ((org.w3c.dom.Attr) root).getOwnerElement() : root.getParentNode();
+        for (; p != null; p = p.getParentNode()) root = p;
+        return root;
+    }
+
     private DOM2DTMExt getDTMExt(DOMSource source, boolean unique, DTMWSFilter whiteSpaceFilter/*, boolean incremental, boolean doIndexing*/) {
+        releaseStaleDTMs(); // reclaim slots before allocating a new one
+
         int dtmPos = getFirstFreeDTMID();
         int documentID = dtmPos << IDENT_DTM_NODE_BITS;
 
@@ -161,6 +274,17 @@ public final class XalanDTMManagerPatch extends org.apache.xml.dtm.ref.DTMManage
         DOM2DTMExt dtm = new DOM2DTMExt(this, source, documentID, whiteSpaceFilter, m_xsf, true);
 
         addDTM(dtm, dtmPos, 0);
+        NokogiriXPathStats.dtmCreated(dtm);
+        final Node root = source.getNode();
+        dtmsByRoot.put(root, new WeakReference<DOM2DTMExt>(dtm));
+        if (root.getNodeType() != Node.DOCUMENT_NODE) {
+            if (detachedDTMs.size() == MAX_DETACHED_DTMS) release(detachedDTMs.peekFirst(), true);
+            detachedDTMs.addLast(dtm);
+        }
+        else if (root.getUserData(RESULT_DOCUMENT) != null) {
+            if (resultDTMs.size() == MAX_DETACHED_DTMS) release(resultDTMs.peekFirst(), true);
+            resultDTMs.addLast(dtm);
+        }
         return dtm;
     }
 
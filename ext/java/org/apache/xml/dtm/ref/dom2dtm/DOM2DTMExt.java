@@ -94,6 +94,9 @@ public class DOM2DTMExt extends DTMDefaultBaseIterators
      * DOM tree.  */
     transient private boolean m_nodesAreProcessed;
 
+    /** Nokogiri: set once the DTM got released by its manager (handles no longer reflect the DOM). */
+    private volatile boolean m_released;
+
     /** The node objects.  The instance part of the handle indexes
      * directly into this vector.  Each DTM node may actually be
      * composed of several DOM nodes (for example, if logically-adjacent
@@ -102,6 +105,13 @@ public class DOM2DTMExt extends DTMDefaultBaseIterators
      * that sequence. */
     protected final java.util.List<Node> m_nodes = new java.util.ArrayList<Node>(12);
 
+    /** Nokogiri: (optional) reverse index of {@link #m_nodes}, DOM node -> identity.
+     * Avoids a linear scan on every DOM to DTM node handle resolution. */
+    private final NodeIdentityIndex m_nodeIndex;
+
+    /** Nokogiri: instrumentation hooks (if any) as set when this DTM got created */
+    private final Instrumentation m_instrumentation;
+
     /**
      * Construct a DOM2DTM object from a DOM node.
      *
@@ -122,6 +132,9 @@ public class DOM2DTMExt extends DTMDefaultBaseIterators
         super(mgr, domSource, dtmIdentity, whiteSpaceFilter,
             xstringfactory, doIndexing);
 
+        m_nodeIndex = doIndexing ? new NodeIdentityIndex() : null;
+        m_instrumentation = instrumentation;
+
         // Initialize DOM navigation
         m_pos=m_root = domSource.getNode();
         // Initialize DTM navigation
@@ -243,6 +256,9 @@ public class DOM2DTMExt extends DTMDefaultBaseIterators
         }
 
         m_nodes.add(node);
+        if (m_nodeIndex != null) m_nodeIndex.put(node, nodeIndex);
+        final Instrumentation instr = m_instrumentation;
+        if (instr != null) instr.nodeAdded(this);
 
         m_firstch.setElementAt(NOTPROCESSED,nodeIndex);
         m_nextsib.setElementAt(NOTPROCESSED,nodeIndex);
@@ -445,6 +461,9 @@ public class DOM2DTMExt extends DTMDefaultBaseIterators
             m_nodesAreProcessed = true;
             m_pos=null;
 
+            final Instrumentation instr = m_instrumentation;
+            if (instr != null) instr.built(this);
+
 //            if(JJK_DEBUG)
 //            {
 //                System.out.println("***** DOM2DTM Crosscheck:");
@@ -653,6 +672,16 @@ public class DOM2DTMExt extends DTMDefaultBaseIterators
      */
     public int getHandleFromNode(Node node)
     {
+        if (null != node && m_nodeIndex != null)
+        {
+            int identity;
+            while ((identity = m_nodeIndex.get(node)) == NULL)
+            {
+                if (!nextNode()) return DTM.NULL;
+            }
+            return makeNodeHandle(identity);
+        }
+
         if (null != node)
         {
             int len = m_nodes.size();
@@ -726,6 +755,188 @@ public class DOM2DTMExt extends DTMDefaultBaseIterators
         return DTM.NULL;
     }
 
+    /**
+     * Nokogiri: completes the incremental build, e.g. before sharing the DTM between threads.
+     */
+    public void buildAll()
+    {
+        while (nextNode()) ;
+    }
+
+    /**
+     * Nokogiri: the expanded name table is shared and might get new entries added on lookup
+     * (e.g. a name test for a name not present in the document), a (read-only) DTM might be
+     * used from multiple threads.
+     */
+    @Override
+    public int getExpandedTypeID(String namespace, String localName, int type)
+    {
+        synchronized (m_expandedNameTable)
+        {
+            return super.getExpandedTypeID(namespace, localName, type);
+        }
+    }
+
+    /**
+     * Nokogiri: every node test (traversal step) looks at the node's expanded type.
+     */
+    @Override
+    protected int _exptype(int identity)
+    {
+        if (m_instrumentation != null) m_instrumentation.nodeVisited(this);
+        return super._exptype(identity);
+    }
+
+    /**
+     * Nokogiri: (optional) instrumentation hooks, null unless instrumentation is enabled.
+     */
+    private static volatile Instrumentation instrumentation;
+
+    /**
+     * Nokogiri: set the instrumentation hooks, only DTMs created afterwards are instrumented.
+     * @param instr the hooks or null to disable
+     */
+    public static void setInstrumentation(final Instrumentation instr)
+    {
+        instrumentation = instr;
+    }
+
+    public interface Instrumentation
+    {
+        /** a node's expanded type is being looked at (e.g. a node test) */
+        void nodeVisited(DOM2DTMExt dtm);
+        /** a DOM node has been added to the DTM (incremental build) */
+        void nodeAdded(DOM2DTMExt dtm);
+        /** all the DOM nodes have been processed */
+        void built(DOM2DTMExt dtm);
+    }
+
+    /**
+     * @return the root of the DOM (sub-)tree this DTM wraps
+     */
+    public Node getRootNode()
+    {
+        return m_root;
+    }
+
+    /**
+     * Nokogiri: marks the DTM as released, node handles (identities) kept elsewhere
+     * should no longer be relied on e.g. for document ordering.
+     */
+    public void markReleased()
+    {
+        m_released = true;
+    }
+
+    /**
+     * Nokogiri: node identities of a DTM, that has not been released, are in document order.
+     * @return whether the DTM got released
+     */
+    public boolean isReleased()
+    {
+        return m_released;
+    }
+
+    /**
+     * Nokogiri: tell whether this DTM stays usable after a structural DOM
+     * change (a node inserted, removed or renamed, attributes added or removed).
+     *
+     * While the DTM is still being built incrementally, changes to nodes past
+     * the current build position are fine, the builder will simply see them
+     * once it gets there. When the DTM has been completely built, nodes that
+     * got appended at the end of the (sub-)tree are picked up by resuming the
+     * incremental build from the previously last node.
+     *
+     * Should be called before a node gets removed (renamed or its attributes
+     * changed) and after a node got inserted.
+     *
+     * @param node the (element) node being changed or the inserted node
+     * @param inserted whether the node has just been inserted
+     * @return false if the DTM might no longer reflect the DOM
+     */
+    public boolean isMutationTolerated(final Node node, final boolean inserted)
+    {
+        if (!m_nodesAreProcessed)
+        {
+            // NOTE: descendants of m_pos are FOLLOWING (and CONTAINED_BY)
+            final int pos = m_pos.compareDocumentPosition(node);
+            return (pos & Node.DOCUMENT_POSITION_DISCONNECTED) == 0 &&
+                   (pos & Node.DOCUMENT_POSITION_FOLLOWING) != 0;
+        }
+        return inserted && resumeAfterAppend(node);
+    }
+
+    private boolean resumeAfterAppend(final Node node)
+    {
+        // NOTE: white-space filtering keeps a stack that was unwound already
+        if (m_wsfilter != null) return false;
+
+        switch (node.getNodeType())
+        {
+            case ATTRIBUTE_NODE: case ENTITY_REFERENCE_NODE: case DOCUMENT_TYPE_NODE:
+                return false;
+        }
+
+        final Node parent = node.getParentNode();
+        if (parent == null || parent.getNodeType() != ELEMENT_NODE) return false;
+        for (Node p = parent; p != m_root; p = p.getParentNode())
+        {
+            if (p == null || ENTITY_REFERENCE_NODE == p.getNodeType()) return false;
+        }
+
+        final int parentIdent = lookupIdentity(parent);
+        if (parentIdent == NULL) return false;
+
+        final Node prev = node.getPreviousSibling();
+        final int prevIdent = (prev == null) ? NULL : lookupIdentity(prev);
+        if (prev != null && prevIdent == NULL) return false;
+        if (prev == null && m_firstch.elementAt(parentIdent) != NULL) return false;
+
+        // all nodes following the insertion point (in document order) must be new
+        for (int i = (prev == null) ? parentIdent : prevIdent; i != NULL; i = m_parent.elementAt(i))
+        {
+            if (m_nextsib.elementAt(i) != NULL) return false;
+        }
+
+        // position the builder where it would have finished before the append
+        Node last = (prev == null) ? parent : prev;
+        while (prev != null && last.hasChildNodes())
+        {
+            if (ENTITY_REFERENCE_NODE == last.getNodeType()) return false;
+            last = last.getLastChild();
+        }
+        final int lastIdent = (last == parent) ? parentIdent : (last == prev) ? prevIdent : lookupIdentity(last);
+        if (lastIdent == NULL) return false;
+
+        // let nextNode() look down into the parent again
+        if (prev == null) m_firstch.setElementAt(NOTPROCESSED, parentIdent);
+        // re-open the spine, so axis traversal knows there are more nodes to come
+        for (int i = lastIdent; i != NULL; i = m_parent.elementAt(i))
+        {
+            m_nextsib.setElementAt(NOTPROCESSED, i);
+        }
+
+        m_pos = last;
+        m_last_kid = lastIdent;
+        m_last_parent = m_parent.elementAt(lastIdent);
+        m_nodesAreProcessed = false;
+        return true;
+    }
+
+    /**
+     * Identity of an already processed node, does not advance the build.
+     */
+    private int lookupIdentity(final Node node)
+    {
+        if (m_nodeIndex != null) return m_nodeIndex.get(node);
+        // likely a recently added node, thus scanning from the end
+        for (int i = m_nodes.size() - 1; i >= 0; i--)
+        {
+            if (m_nodes.get(i) == node) return i;
+        }
+        return NULL;
+    }
+
     /**
      * Retrieves an attribute node by by qualified name and namespace URI.
      *
@@ -1339,28 +1550,13 @@ public class DOM2DTMExt extends DTMDefaultBaseIterators
 
         if(null != doc)
         {
+            // NOTE: Xerces keeps an ID -> element table, the (incremental)
+            // node index resolves the element's handle (or builds up to it)
             Node elem = doc.getElementById(elementId);
             if(null != elem)
             {
-                int elemHandle = getHandleFromNode(elem);
-
-                if(DTM.NULL == elemHandle)
-                {
-                    int identity = m_nodes.size()-1;
-                    while (DTM.NULL != (identity = getNextNodeIdentity(identity)))
-                    {
-                        Node node = getNode(identity);
-                        if(node == elem)
-                        {
-                            elemHandle = getHandleFromNode(elem);
-                            break;
-                        }
-                    }
-                }
-
-                return elemHandle;
+                return getHandleOfNode(elem);
             }
-
         }
         return DTM.NULL;
     }
@@ -1744,6 +1940,58 @@ public class DOM2DTMExt extends DTMDefaultBaseIterators
         return null;
     }
 
-}
+    /**
+     * Nokogiri: an identity (open addressing) hash map of DOM nodes to DTM identities.
+     */
+    private static final class NodeIdentityIndex
+    {
+        private Node[] keys = new Node[32];
+        private int[] values = new int[32];
+        private int size;
 
+        int get(final Node node)
+        {
+            final Node[] keys = this.keys;
+            final int mask = keys.length - 1;
+            for (int i = hash(node) & mask; ; i = (i + 1) & mask)
+            {
+                final Node key = keys[i];
+                if (key == node) return values[i];
+                if (key == null) return NULL;
+            }
+        }
 
+        void put(final Node node, final int identity)
+        {
+            if (++size * 2 > keys.length) resize();
+            insert(keys, values, node, identity);
+        }
+
+        private static void insert(final Node[] keys, final int[] values, final Node node, final int identity)
+        {
+            final int mask = keys.length - 1;
+            int i = hash(node) & mask;
+            while (keys[i] != null && keys[i] != node) i = (i + 1) & mask;
+            keys[i] = node; values[i] = identity;
+        }
+
+        private void resize()
+        {
+            final Node[] oldKeys = keys; final int[] oldValues = values;
+            final Node[] newKeys = new Node[oldKeys.length * 2];
+            final int[] newValues = new int[newKeys.length];
+            for (int i = 0; i < oldKeys.length; i++)
+            {
+                if (oldKeys[i] != null) insert(newKeys, newValues, oldKeys[i], oldValues[i]);
+            }
+            keys = newKeys; values = newValues;
+        }
+
+        private static int hash(final Node node)
+        {
+            final int h = System.identityHashCode(node);
+            return h ^ (h >>> 16);
+        }
+    }
+
+}
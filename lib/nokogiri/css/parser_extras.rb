@@ -68,13 +68,14 @@ module Nokogiri
 
       # Get the xpath for +string+ using +options+
       def xpath_for string, options={}
-        key = "#{string}#{options[:ns]}#{options[:prefix]}"
+        visitor = options[:visitor] || XPathVisitor.new
+        key = "#{string}#{options[:ns]}#{options[:prefix]}#{visitor.class}"
         v = self.class[key]
         return v if v
 
         args = [
           options[:prefix] || '//',
-          options[:visitor] || XPathVisitor.new
+          visitor
         ]
         self.class[key] = parse(string).map { |ast|
           ast.to_xpath(*args)
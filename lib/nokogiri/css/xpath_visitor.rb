@@ -178,7 +178,7 @@ module Nokogiri
 
         a, b = read_a_and_positive_b node.value
         position = if options[:child]
-          options[:last] ? "(count(following-sibling::*) + 1)" : "(count(preceding-sibling::*) + 1)"
+          child_position options[:last]
         else
           options[:last] ? "(last()-position()+1)" : "position()"
         end
@@ -195,6 +195,10 @@ module Nokogiri
         end
       end
 
+      def child_position last
+        last ? "(count(following-sibling::*) + 1)" : "(count(preceding-sibling::*) + 1)"
+      end
+
       def read_a_and_positive_b values
         op = values[2]
         if op == "+"
@@ -219,5 +223,47 @@ module Nokogiri
         end   
       end
     end
+
+    ###
+    # Emits native XPath functions (implemented in Java) in place of expensive
+    # XPath idioms for class and child position tests, these are JRuby only.
+    class JRubyXPathVisitor < XPathVisitor # :nodoc:
+      # the generated XPath calls (Java) built-in functions, these need to be bound when evaluating
+      NAMESPACES = { 'nokogiri-builtin' => 'http://www.nokogiri.org/default_ns/ruby/builtins' }.freeze
+
+      def visit_function node
+        if node.value[1].is_a?(Nokogiri::CSS::Node) and node.value[1].type == :NTH
+          return super
+        end
+
+        case node.value.first
+        when /^nth-child\(/
+          "nokogiri-builtin:child-index(.) = #{node.value[1].to_i}"
+        when /^nth-last-child\(/
+          "nokogiri-builtin:last-child-index(.) = #{node.value[1].to_i}"
+        else
+          super
+        end
+      end
+
+      def visit_pseudo_class node
+        case node.value.first
+        when "first-child" then "nokogiri-builtin:child-index(.) = 1"
+        when "last-child" then "nokogiri-builtin:last-child-index(.) = 1"
+        when "only-child" then "nokogiri-builtin:child-index(.) = 1 and nokogiri-builtin:last-child-index(.) = 1"
+        else
+          super
+        end
+      end
+
+      def visit_class_condition node
+        "nokogiri-builtin:css-class(@class, '#{node.value.first}')"
+      end
+
+    private
+      def child_position last
+        last ? "nokogiri-builtin:last-child-index(.)" : "nokogiri-builtin:child-index(.)"
+      end
+    end
   end
 end
@@ -185,6 +185,53 @@ module Nokogiri
         internal_subset.validate self
       end
 
+      unless method_defined?(:read_only!) # native on JRuby
+        ##
+        # Mark this document as read-only, to be queried from multiple threads.
+        # On JRuby the XPath document model gets built once and is shared by
+        # all threads, structural changes to the document raise an error.
+        def read_only!
+          @read_only = true
+          self
+        end
+
+        ##
+        # Whether #read_only! has been called on this document.
+        def read_only?
+          !!@read_only
+        end
+      end
+
+      unless method_defined?(:weak_node_cache!) # native on JRuby
+        ##
+        # Hold the Ruby objects wrapping this document's nodes weakly, e.g. for a
+        # single traversal of a large document. On JRuby a node object that is no
+        # longer referenced gets garbage collected and re-created when needed,
+        # elsewhere node objects are kept for the document's lifetime.
+        def weak_node_cache!
+          @weak_node_cache = true
+          self
+        end
+
+        ##
+        # Whether #weak_node_cache! has been called on this document.
+        def weak_node_cache?
+          !!@weak_node_cache
+        end
+      end
+
+      unless method_defined?(:batch) # native on JRuby
+        ##
+        # Yields this document, modifications made within the block are applied
+        # as a batch. On JRuby fix-ups needed after moving nodes around (namespace
+        # re-linking, cache resets) are done once when the block returns, thus
+        # namespaces of moved nodes might not be up-to-date within the block.
+        # Returns the block's result.
+        def batch
+          yield self
+        end
+      end
+
       ##
       # Explore a document with shortcut methods. See Nokogiri::Slop for details.
       #
@@ -87,6 +87,16 @@ module Nokogiri
         end
       end
 
+      ###
+      # call-seq: at_css *rules, [namespace-bindings, custom-pseudo-class]
+      #
+      # Search this fragment for CSS +rules+, and return only the first match.
+      #
+      # For more information see Nokogiri::XML::Searchable#at_css
+      def at_css *args
+        css(*args).first
+      end
+
       #
       #  NOTE that we don't delegate #xpath to children ... another smell.
       #  def xpath ; end
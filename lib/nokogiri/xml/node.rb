@@ -353,9 +353,7 @@ module Nokogiri
       ###
       # Remove the attribute named +name+
       def remove_attribute name
-        attr = attributes[name].remove if key? name
-        clear_xpath_context if Nokogiri.jruby?
-        attr
+        attributes[name].remove if key? name
       end
       alias :delete :remove_attribute
 
@@ -417,6 +415,16 @@ module Nokogiri
         self.native_content = encode_special_chars(string.to_s)
       end
 
+      unless method_defined?(:content_preview) # native on JRuby
+        ###
+        # Returns the first +length+ characters of this Node's #content, e.g. for
+        # previews. On JRuby the text past +length+ is not extracted at all.
+        def content_preview length
+          raise ArgumentError, "negative length #{length}" if length < 0
+          (text = content) && text[0, length]
+        end
+      end
+
       ###
       # Set the parent Node for this Node
       def parent= parent_node
@@ -74,6 +74,7 @@ module Nokogiri
       def css *args
         rules, handler, ns, _ = extract_params(args)
         paths = css_rules_to_xpath(rules, ns)
+        ns = css_namespaces(ns)
 
         inject(NodeSet.new(document)) do |set, node|
           set + xpath_internal(node, paths, handler, ns, nil)
@@ -95,6 +96,39 @@ module Nokogiri
         end
       end
 
+      ###
+      # call-seq: at_css *rules, [namespace-bindings, custom-pseudo-class]
+      #
+      # Search this node set for CSS +rules+, and return only the first match.
+      #
+      # For more information see Nokogiri::XML::Searchable#at_css
+      def at_css *args
+        css(*args).first
+      end
+
+      ###
+      # call-seq: at_xpath *paths, [namespace-bindings, variable-bindings, custom-handler-class]
+      #
+      # Search this node set for XPath +paths+, and return only the first match.
+      #
+      # For more information see Nokogiri::XML::Searchable#at_xpath
+      def at_xpath *args
+        xpath(*args).first
+      end
+
+      ###
+      # call-seq: xpath_batch *paths, [namespace-bindings, variable-bindings, custom-handler-class]
+      #
+      # Search this node set for each of the XPath +paths+, returning an Array
+      # with one NodeSet per path.
+      #
+      # For more information see Nokogiri::XML::Searchable#xpath_batch
+      def xpath_batch *args
+        paths, handler, ns, binds = extract_params(args)
+
+        paths.map { |path| xpath(*[path, ns, binds, handler].compact) }
+      end
+
       ###
       # Search this NodeSet's nodes' immediate children using CSS selector +selector+
       def > selector
@@ -201,18 +235,40 @@ module Nokogiri
       #
       # Instead, if you want to return the text of all nodes in the NodeSet:
       #
-      #    doc.css('d').map(&:text) # => ["foo", "bar"]
+      #    doc.css('d').texts # => ["foo", "bar"]
       #
       # See Nokogiri::XML::Node#content for more information.
       def inner_text
-        collect(&:inner_text).join('')
+        texts.join('')
       end
       alias :text :inner_text
 
+      unless method_defined?(:texts) # native on JRuby
+        ###
+        # Get the text of each contained Node object, same as <tt>map(&:text)</tt>
+        def texts
+          map(&:text)
+        end
+
+        ###
+        # Get the value of attribute +name+ for each contained Node object,
+        # same as <tt>map { |node| node[name] }</tt>
+        def attribute_values name
+          map { |node| node[name] }
+        end
+      end
+
       ###
       # Get the inner html of all contained Node objects
       def inner_html *args
-        collect{|j| j.inner_html(*args) }.join('')
+        inner_htmls(*args).join('')
+      end
+
+      ###
+      # Get the inner html of each contained Node object, same as
+      # <tt>map { |node| node.inner_html(*args) }</tt>
+      def inner_htmls *args
+        write_each_html(true, args)
       end
 
       ###
@@ -242,7 +298,7 @@ module Nokogiri
           end
           args.insert(0, options)
         end
-        map { |x| x.to_html(*args) }.join
+        write_each_html(false, args).join
       end
 
       ###
@@ -322,6 +378,27 @@ module Nokogiri
       # @private
       IMPLIED_XPATH_CONTEXTS = [ './/'.freeze, 'self::'.freeze ].freeze # :nodoc:
 
+      private
+
+      # Node#to_html (or Node#inner_html when +inner+) of each node, serialized
+      # in one go on JRuby
+      def write_each_html inner, args
+        return [] if empty?
+        if respond_to?(:native_write_each, true)
+          options = args.first.is_a?(Hash) ? args.first : {}
+          strings = native_write_each(
+            options[:encoding] || document.encoding,
+            (options[:indent_text] || ' ') * (options[:indent] || 0),
+            (options[:save_with] || Node::SaveOptions::DEFAULT_HTML).to_i,
+            inner
+          )
+        end
+        return map { |node| inner ? node.inner_html(*args) : node.to_html(*args) } unless strings
+        strings.each_index do |i|
+          strings[i] ||= inner ? self[i].inner_html(*args) : self[i].to_html(*args)
+        end
+      end
+
     end
   end
 end
@@ -48,10 +48,14 @@ module Nokogiri
       def search *args
         paths, handler, ns, binds = extract_params(args)
 
+        css = false
         xpaths = paths.map(&:to_s).map do |path|
-          (path =~ LOOKS_LIKE_XPATH) ? path : xpath_query_from_css_rule(path, ns)
+          next path if path =~ LOOKS_LIKE_XPATH
+          css = true
+          xpath_query_from_css_rule(path, ns)
         end.flatten.uniq
 
+        ns = css_namespaces(ns) if css
         xpath(*(xpaths + [ns, handler, binds].compact))
       end
       alias :/ :search
@@ -115,7 +119,9 @@ module Nokogiri
       #
       # See Searchable#css for more information.
       def at_css *args
-        css(*args).first
+        rules, handler, ns, _ = extract_params(args)
+
+        xpath_first_internal self, css_rules_to_xpath(rules, ns), handler, css_namespaces(ns), nil
       end
 
       ###
@@ -148,6 +154,9 @@ module Nokogiri
       #     end
       #   }.new)
       #
+      # A compiled XPath::Expression (with its own namespace bindings and
+      # handler) may be passed in place of a query string.
+      #
       def xpath *args
         paths, handler, ns, binds = extract_params(args)
 
@@ -162,13 +171,37 @@ module Nokogiri
       #
       # See Searchable#xpath for more information.
       def at_xpath *args
-        xpath(*args).first
+        paths, handler, ns, binds = extract_params(args)
+
+        xpath_first_internal self, paths, handler, ns, binds
+      end
+
+      ##
+      # call-seq: xpath_batch *paths, [namespace-bindings, variable-bindings, custom-handler-class]
+      #
+      # Search this node for each of the XPath +paths+, returning an Array
+      # with one result per path (unlike #xpath which combines them):
+      #
+      #   title, count = node.xpath_batch('.//title', 'count(.//link)')
+      #
+      # All of the +paths+ are evaluated using the same XPath context.
+      #
+      # See Searchable#xpath for more information.
+      def xpath_batch *args
+        paths, handler, ns, binds = extract_params(args)
+
+        return paths.map { NodeSet.new(document) } unless document
+        ctx = xpath_context(self, ns, binds)
+        # compiled expressions are evaluated on their own (with their own bindings)
+        queries = paths.reject { |path| XPath::Expression === path }
+        results = ctx.evaluate_batch(queries.map { |path| xpath_path(path) }, handler)
+        paths.map { |path| XPath::Expression === path ? path.evaluate(self, binds) : results.shift }
       end
 
       private
 
       def css_internal node, rules, handler, ns
-        xpath_internal node, css_rules_to_xpath(rules, ns), handler, ns, nil
+        xpath_internal node, css_rules_to_xpath(rules, ns), handler, css_namespaces(ns), nil
       end
 
       def xpath_internal node, paths, handler, ns, binds
@@ -186,16 +219,41 @@ module Nokogiri
         end
       end
 
-      def xpath_impl node, path, handler, ns, binds
+      def xpath_first_internal node, paths, handler, ns, binds
+        return nil unless node.document
+
+        paths.each do |path|
+          result = xpath_impl(node, path, handler, ns, binds, true)
+          return result unless result.nil?
+        end
+        nil
+      end
+
+      def xpath_impl node, path, handler, ns, binds, first = false
+        if XPath::Expression === path # compiled (namespaces and handler bound)
+          result = path.evaluate(node, binds)
+          return first && NodeSet === result ? result.first : result
+        end
+
+        ctx = xpath_context(node, ns, binds)
+        path = xpath_path(path)
+
+        first ? ctx.evaluate_first(path, handler) : ctx.evaluate(path, handler)
+      end
+
+      def xpath_context node, ns, binds
         ctx = XPathContext.new(node)
         ctx.register_namespaces(ns)
-        path = path.gsub(/xmlns:/, ' :') unless Nokogiri.uses_libxml?
 
         binds.each do |key,value|
           ctx.register_variable key.to_s, value
         end if binds
 
-        ctx.evaluate(path, handler)
+        ctx
+      end
+
+      def xpath_path path
+        Nokogiri.uses_libxml? ? path : path.gsub(/xmlns:/, ' :')
       end
 
       def css_rules_to_xpath(rules, ns)
@@ -203,14 +261,20 @@ module Nokogiri
       end
 
       def xpath_query_from_css_rule rule, ns
+        visitor = Nokogiri.jruby? ? CSS::JRubyXPathVisitor.new : CSS::XPathVisitor.new
         self.class::IMPLIED_XPATH_CONTEXTS.map do |implied_xpath_context|
-          CSS.xpath_for(rule.to_s, :prefix => implied_xpath_context, :ns => ns)
+          CSS.xpath_for(rule.to_s, :prefix => implied_xpath_context, :ns => ns, :visitor => visitor)
         end.join(' | ')
       end
 
+      # namespaces for evaluating XPath generated from CSS (on JRuby binds the built-in functions)
+      def css_namespaces ns
+        Nokogiri.jruby? ? ns.merge(CSS::JRubyXPathVisitor::NAMESPACES) : ns
+      end
+
       def extract_params params # :nodoc:
         handler = params.find do |param|
-          ![Hash, String, Symbol].include?(param.class)
+          ![Hash, String, Symbol, XPath::Expression].include?(param.class)
         end
         params -= [handler] if handler
 
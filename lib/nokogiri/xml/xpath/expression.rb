@@ -0,0 +1,44 @@
+module Nokogiri
+  module XML
+    class XPath
+      ###
+      # An XPath expression compiled once, with namespaces and a custom
+      # function handler bound up front, to be evaluated against any node
+      # of any document:
+      #
+      #   expr = Nokogiri::XML::XPath::Expression.new('//atom:link', 'atom' => 'http://www.w3.org/2005/Atom')
+      #   feeds.each { |doc| expr.evaluate(doc) }
+      #
+      # Expressions may also be passed to Searchable#xpath and Searchable#at_xpath.
+      class Expression
+        unless method_defined?(:evaluate) # native on JRuby
+          # The XPath expression source
+          attr_reader :path
+          # Namespace bindings (prefix => URI)
+          attr_reader :namespaces
+          # The custom function handler (if any)
+          attr_reader :handler
+
+          def initialize path, namespaces = nil, handler = nil
+            @path = path.to_s.dup.freeze
+            @namespaces = (namespaces || {}).dup.freeze
+            @handler = handler
+          end
+
+          ###
+          # Evaluate this expression against +node+, with optional variable +binds+
+          def evaluate node, binds = nil
+            ctx = XPathContext.new(node)
+            ctx.register_namespaces(namespaces)
+            binds.each { |key, value| ctx.register_variable key.to_s, value } if binds
+            ctx.evaluate(path, handler)
+          end
+        end
+
+        def inspect # :nodoc:
+          "#<#{self.class.name} #{path.inspect}>"
+        end
+      end
+    end
+  end
+end
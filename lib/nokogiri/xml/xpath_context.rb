@@ -11,6 +11,24 @@ module Nokogiri
         end
       end
 
+      unless method_defined?(:evaluate_first) # native on JRuby
+        ###
+        # Evaluate the +search_path+ returning only the first matched node (or nil),
+        # non node-set results (numbers, strings and booleans) are returned as is
+        def evaluate_first(search_path, handler = nil)
+          result = evaluate(search_path, handler)
+          NodeSet === result ? result.first : result
+        end
+      end
+
+      unless method_defined?(:evaluate_batch) # native on JRuby
+        ###
+        # Evaluate each of the +search_paths+ returning an Array of results
+        def evaluate_batch(search_paths, handler = nil)
+          search_paths.map { |search_path| evaluate(search_path, handler) }
+        end
+      end
+
     end
   end
 end
@@ -54,6 +54,15 @@ module Nokogiri
                       @parser.parse(".red")
       end
 
+      def test_jruby_visitor_emits_native_functions
+        visitor = JRubyXPathVisitor.new
+        assert_equal "//*[nokogiri-builtin:css-class(@class, 'red')]", @parser.parse(".red").first.to_xpath('//', visitor)
+        assert_equal "//li[nokogiri-builtin:child-index(.) = 1]", @parser.parse("li:first-child").first.to_xpath('//', visitor)
+        assert_equal "//li[nokogiri-builtin:last-child-index(.) = 2]", @parser.parse("li:nth-last-child(2)").first.to_xpath('//', visitor)
+        assert_equal "//li[(nokogiri-builtin:child-index(.) mod 2) = 0]", @parser.parse("li:nth-child(2n)").first.to_xpath('//', visitor)
+        assert_equal "//li[position() = 3]", @parser.parse("li:nth-of-type(3)").first.to_xpath('//', visitor)
+      end
+
       def test_pipe
         assert_xpath  "//a[@id = 'Boing' or starts-with(@id, concat('Boing', '-'))]",
                       @parser.parse("a[id|='Boing']")
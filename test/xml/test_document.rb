@@ -16,6 +16,82 @@ module Nokogiri
         @xml = Nokogiri::XML.parse(File.read(XML_FILE), XML_FILE)
       end
 
+      def test_read_only_document_queried_from_threads
+        doc = Nokogiri::XML("<root>#{(1..100).map { |i| "<item n='#{i % 5}'><v>#{i}</v></item>" }.join}</root>")
+        refute doc.read_only?
+        assert_same doc, doc.read_only!
+        assert doc.read_only?
+
+        results = Array.new(4) do |t|
+          Thread.new do
+            (1..25).map do |i|
+              [doc.xpath("//item[@n='#{t}']").length, doc.at_xpath("//item[v=#{i}]/v").text, doc.css('v').length]
+            end
+          end
+        end.map(&:value)
+        results.each_with_index do |result, t|
+          assert_equal (1..25).map { |i| [20, i.to_s, 100] }, result
+        end
+      end
+
+      def test_weak_node_cache
+        doc = Nokogiri::XML("<root>#{(1..1000).map { |i| "<item n='#{i}'><v>#{i}</v></item>" }.join}</root>")
+        doc.decorators(Nokogiri::XML::Node) << Module.new { def decorated?; true; end }
+        refute doc.weak_node_cache?
+        item = doc.at('item')
+        item.instance_variable_set(:@mark, 42)
+        assert_same doc, doc.weak_node_cache!
+        assert doc.weak_node_cache?
+
+        3.times do
+          doc.root.traverse { |node| node.name }
+          GC.start
+        end
+        assert_same item, doc.root.children.first
+        assert_same item, doc.at_xpath('//item[@n=1]')
+        assert_equal 42, doc.at('item').instance_variable_get(:@mark)
+        assert doc.root.children.last.decorated?
+        assert_equal (1..1000).map(&:to_s), doc.xpath('//v').map(&:text)
+        assert_same doc, doc.root.children.last.document
+      end
+
+      def test_batch
+        build = lambda do |doc|
+          list = Nokogiri::XML::Node.new('list', doc)
+          10.times do |i|
+            item = Nokogiri::XML::Node.new('item', doc)
+            item.add_child Nokogiri::XML::Node.new('x:value', doc)
+            item.add_child Nokogiri::XML::Text.new("#{i}", doc)
+            item.add_child Nokogiri::XML::Text.new("!", doc)
+            list.add_child item
+          end
+          doc.root.add_child list
+          doc.root.add_child list.children.first # moved again
+          doc.root.xpath('//xmlns:item').length
+        end
+        xml = '<root xmlns="urn:a" xmlns:x="urn:x"/>'
+
+        doc = Nokogiri::XML(xml)
+        build.call(doc)
+        batched = Nokogiri::XML(xml)
+        assert_equal 10, batched.batch { |d| assert_same batched, d; build.call(d) }
+
+        assert_equal doc.to_xml, batched.to_xml
+        assert_equal 'urn:a', batched.root.children.last.namespace.href
+        assert_equal %w[urn:x] * 10, batched.xpath('//x:value', 'x' => 'urn:x').map { |n| n.namespace.href }
+        assert_equal %w[1! 2! 0!], batched.xpath('//xmlns:item').map(&:text).values_at(0, 1, -1)
+      end
+
+      def test_read_only_document_modifications
+        skip("read-only documents are only enforced on JRuby") unless Nokogiri.jruby?
+
+        doc = Nokogiri::XML('<root><a/><b/></root>').read_only!
+        assert_raises(RuntimeError) { doc.root << Nokogiri::XML::Node.new('c', doc) }
+        assert_raises(RuntimeError) { doc.at_xpath('//a').unlink }
+        assert_raises(RuntimeError) { doc.root['attr'] = 'value' }
+        assert_equal 2, doc.root.children.length
+      end
+
       def test_dtd_with_empty_internal_subset
         doc = Nokogiri::XML <<-eoxml
 <?xml version="1.0"?>
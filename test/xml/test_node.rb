@@ -342,6 +342,23 @@ module Nokogiri
         assert_nil(nodes.first <=> b)
       end
 
+      def test_duplicate_of_parsed_nodes_keeps_own_wrappers
+        doc = Nokogiri::XML('<root><a x="1"><b>text</b></a></root>')
+        a = doc.at('a')
+        copies = Array.new(2) { a.dup }
+        copies.each { |copy| doc.root << copy }
+
+        assert_same a, doc.root.children.first
+        assert_equal [a, *copies], doc.root.children.to_a
+        assert_equal 3, doc.root.children.map { |n| n.children.first }.uniq(&:object_id).length
+        copies.each do |copy|
+          refute_same a.at('b'), copy.at('b')
+          assert_same copy, copy.at('b').parent
+          refute_same a.attribute('x'), copy.attribute('x')
+        end
+        assert_same a, a.at('b').parent
+      end
+
       def test_duplicate_node_removes_namespace
         fruits = Nokogiri::XML(<<-eoxml)
         <Fruit xmlns='www.fruits.org'>
@@ -838,6 +855,25 @@ module Nokogiri
         assert_equal '&amp;', foo
       end
 
+      def test_escaping_round_trip
+        doc = Nokogiri::XML('<root/>')
+        assert_equal 'plain text', doc.root.encode_special_chars('plain text')
+        assert_equal 'a &lt;b&gt; &amp;amp;', doc.root.encode_special_chars('a <b> &amp;')
+
+        doc.root.content = "a < b && c > d \u00E9"
+        doc.root['title'] = "say \"hi\" & <bye>\n\tnow"
+        xml = doc.to_xml
+        assert_match(/a &lt; b &amp;&amp; c &gt; d/, xml)
+
+        copy = Nokogiri::XML(xml)
+        assert_equal doc.root.content, copy.root.content
+        assert_equal doc.root['title'], copy.root['title']
+
+        ascii = doc.to_xml(:encoding => 'ASCII')
+        assert_match(/d &#xe9;/i, ascii)
+        assert_equal doc.root.content, Nokogiri::XML(ascii).root.content
+      end
+
       def test_content_equals
         node = Nokogiri::XML::Node.new('form', @xml)
         assert_equal('', node.content)
@@ -881,6 +917,19 @@ module Nokogiri
         assert_equal 'firstsecondthird', node.content
       end
 
+      def test_content_preview
+        doc = Nokogiri::XML "<foo>h\u00E9llo <b>w\u{1F600}rld</b><!-- skip --> &amp; <![CDATA[<x>]]></foo>"
+        assert_equal "h\u00E9llo w\u{1F600}rld & <x>", doc.root.content
+        assert_equal Encoding::UTF_8, doc.root.content.encoding
+        assert_equal "h\u00E9llo w\u{1F600}", doc.root.content_preview(8)
+        assert_equal "", doc.root.content_preview(0)
+        assert_equal doc.root.content, doc.root.content_preview(100)
+        assert_raises(ArgumentError) { doc.root.content_preview(-1) }
+
+        doc.root.content = "a & b < c"
+        assert_equal "a & b", doc.root.content_preview(5)
+      end
+
       def test_set_content_should_unlink_existing_content
         node     = @xml.at_css("employee")
         children = node.children
@@ -1094,6 +1143,33 @@ EOXML
         assert_equal 2, node.line
       end
 
+      def test_line_after_multi_line_text
+        xml = Nokogiri::XML("<root>\n  <a x='1'>\n    multi\n    line\n  </a>\n  <b/>\n  <c><d/></c>\n</root>")
+        assert_equal 1, xml.root.line
+        assert_equal 2, xml.at('a').line
+        assert_equal 6, xml.at('b').line
+        assert_equal 7, xml.at('d').line
+      end
+
+      def test_line_of_parsed_node_types
+        skip("lines of text and attribute nodes differ in libxml2") unless Nokogiri.jruby?
+
+        xml = Nokogiri::XML("<root>\n  <a x='1'>\n    multi\n    line\n  </a>\n<!-- c\n -->\n<?pi data?>\n<c><![CDATA[\nx]]></c>\n</root>")
+        assert_equal 2, xml.at('a').children.first.line
+        assert_equal 2, xml.at('a').attribute('x').line
+        assert_equal 6, xml.root.children.find(&:comment?).line
+        assert_equal 8, xml.root.children.find(&:processing_instruction?).line
+        assert_equal 9, xml.at('c').children.first.line
+
+        doc = Nokogiri::XML("<r/>")
+        doc.root << xml.at('a')
+        assert_equal 2, doc.at('a').line
+
+        html = Nokogiri::HTML("<html>\n<body>\n<p>x</p>\n<div>\n</div></body></html>")
+        assert_equal 3, html.at('p').line
+        assert_equal 4, html.at('div').line
+      end
+
       def test_xpath_results_have_document_and_are_decorated
         x = Module.new do
           def awesome! ; end
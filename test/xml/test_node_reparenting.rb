@@ -556,6 +556,53 @@ EOX
             assert_no_match(/default:/, insert_point.children.to_xml)
             assert_match(/<Component>/, insert_point.children.to_xml)
           end
+
+          it "relinks namespaces of a deep subtree" do
+            source_doc = Nokogiri::XML <<-EOX
+<root xmlns="urn:a">
+  <sub xmlns:x="urn:x"><item x:id="1"><x:v><deep xmlns="urn:c"><x:leaf/></deep></x:v></item></sub>
+</root>
+EOX
+            dest_doc = Nokogiri::XML "<dest xmlns='urn:a'/>"
+
+            leaf = source_doc.at_xpath("//x:leaf", "x" => "urn:x")
+            id = source_doc.at_xpath("//a:item", "a" => "urn:a").attribute_with_ns("id", "urn:x")
+            dest_doc.root << source_doc.at_xpath("//a:sub", "a" => "urn:a")
+
+            assert_equal "urn:a", dest_doc.at_xpath("//a:item", "a" => "urn:a").namespace.href
+            assert_equal "urn:c", dest_doc.at_xpath("//c:deep", "c" => "urn:c").namespace.href
+            assert_same leaf, dest_doc.at_xpath("//x:leaf", "x" => "urn:x")
+            assert_equal "urn:x", leaf.namespace.href
+            assert_equal "1", id.value
+            assert_equal "urn:x", id.namespace.href
+          end
+
+          it "relinks descendants to a prefix declared on an ancestor in the destination" do
+            dest_doc = Nokogiri::XML "<dest xmlns='urn:d' xmlns:y='urn:y'/>"
+            dest_doc.root << Nokogiri::XML("<a><y:b><y:c/></y:b></a>").root
+
+            assert_equal "urn:d", dest_doc.root.at_xpath("d:a", "d" => "urn:d").namespace.href
+            assert_equal %w[urn:y urn:y], dest_doc.xpath("//y:*", "y" => "urn:y").map { |n| n.namespace.href }
+            assert_equal %w[b c], dest_doc.xpath("//y:*", "y" => "urn:y").map(&:name)
+          end
+
+          it "keeps the wrappers of the reparented subtree" do
+            source_doc = Nokogiri::XML "<root><a foo='bar'><b>text</b></a></root>"
+            dest_doc = Nokogiri::XML "<root/>"
+
+            a = source_doc.at("a")
+            b = source_doc.at("b")
+            attr = a.attribute("foo")
+            b.instance_variable_set(:@mark, 42)
+
+            dest_doc.root.add_child(a)
+
+            assert_same a, dest_doc.at("a")
+            assert_same b, dest_doc.at("b")
+            assert_same attr, dest_doc.at("a").attribute("foo")
+            assert_equal 42, dest_doc.at("b").instance_variable_get(:@mark)
+            assert_same dest_doc, b.document
+          end
         end
       end
     end
@@ -40,6 +40,22 @@ module Nokogiri
         assert_equal 7, @xml.root.elements.each { |x| break 7 }
       end
 
+      def test_element_access_before_to_a
+        set = @xml.xpath('//employee')
+        assert_equal 5, set.size
+        assert_same set[1], set[1]
+        assert_same set[4], set[-1]
+        assert_nil set[5]
+        assert_nil set[-6]
+        assert_equal 'employee', set.last.name
+
+        array = set.to_a
+        assert_equal 5, array.length
+        assert_same set[1], array[1]
+        assert_same set.first, @xml.at_xpath('//employee')
+        assert_equal set.to_a, @xml.xpath('//employee').to_a
+      end
+
       def test_filter
         list = @xml.css('address').filter('*[domestic="Yes"]')
         assert_equal(%w{ Yes } * 4, list.map { |n| n['domestic'] })
@@ -777,6 +793,84 @@ module Nokogiri
         assert_equal node_set.document, new_set.document
         assert new_set.respond_to?(:awesome!)
       end
+
+      def test_large_node_set_operations_keep_member_identity
+        doc = Nokogiri::XML("<root>#{'<a/><b/>' * 500}</root>")
+        as = doc.xpath('//a')
+        all = doc.xpath('//*')
+
+        assert_equal 500, as.length
+        assert_same as[10], all[21]
+        assert_equal 1001, (all | as).length
+        assert_equal 500, (all & as).length
+        assert_equal 501, (all - as).length
+        assert_equal %w[root b b], (all - as)[0, 3].map(&:name)
+        assert_equal 250, as[250..-1].length
+        assert_equal 2, as[-2, 5].length
+        assert_nil as[501, 1]
+
+        copy = as.dup
+        assert_same as.last, copy.delete(as.last)
+        assert_equal 499, copy.length
+        assert_equal 500, as.length
+        assert copy.push(as.last).include?(as.last)
+        assert_equal as.to_a, copy.to_a
+      end
+
+      def test_bulk_extractors
+        doc = Nokogiri::HTML("<div><a href='/1' id='x'>one <b>1</b></a><a>two<br></a><p><![CDATA[c]]></p></div>")
+        links = doc.css('a')
+
+        assert_equal ["one 1", "two"], links.texts
+        assert_equal links.map(&:text), links.texts
+        assert_equal ["/1", nil], links.attribute_values('href')
+        assert_equal ["x", nil], links.attribute_values(:id)
+        assert_equal [nil, nil], doc.css('a/text()').attribute_values('href')
+        assert_equal ["/1"], doc.xpath('//a/@href').texts
+        assert_equal links.map(&:inner_html), links.inner_htmls
+        assert_equal links.map(&:inner_html).join, links.inner_html
+        assert_equal doc.css('div').map(&:inner_html), doc.css('div').inner_htmls
+        assert_equal [], Nokogiri::XML::NodeSet.new(doc).inner_htmls
+        assert_equal [], Nokogiri::XML::NodeSet.new(doc).texts
+      end
+
+      def test_set_operations_return_nodes_in_document_order
+        skip("set operations keep insertion order on libxml2") unless Nokogiri.jruby?
+        doc = Nokogiri::XML("<root><a/><b/><a/><b/></root>")
+        as = doc.xpath('//a')
+        bs = doc.xpath('//b')
+
+        assert_equal %w[a b a b], (bs | as).map(&:name)
+        assert_equal %w[a b a b], (bs + as + bs).map(&:name)
+        assert_equal %w[root a a], (doc.xpath('//*') - bs).map(&:name)
+        assert_equal %w[b b], (bs.reverse & doc.xpath('//*')).map(&:name)
+
+        pushed = Nokogiri::XML::NodeSet.new(doc, [bs.last, as.last, bs.last, doc.root])
+        assert_equal [doc.root, as.last, bs.last], (pushed | Nokogiri::XML::NodeSet.new(doc)).to_a
+        assert_equal [as.first, as.last, bs.last], (as | pushed.slice(0, 2)).to_a
+
+        doc.root.add_child('<c/>')
+        doc.root.first_element_child.unlink
+        assert_equal %w[b a b c], (doc.xpath('//c') | doc.xpath('//a | //b')).map(&:name)
+      end
+
+      def test_set_operations_order_nodes_without_building_the_xpath_model
+        skip("set operations keep insertion order on libxml2") unless Nokogiri.jruby?
+        doc = Nokogiri::XML("<root><a/><b><c/></b></root>")
+        a, b, c = doc.root.children.first, doc.root.children.last, doc.at('//c')
+        detached = [Nokogiri::XML::Node.new('y', doc), Nokogiri::XML::Node.new('x', doc)]
+        Nokogiri::XML::XPathContext.instrumentation = true
+        begin
+          Nokogiri::XML::XPathContext.reset_instrumentation
+          nodes = Nokogiri::XML::NodeSet.new(doc, [detached.first, c, a, detached.last, b])
+          # detached nodes (own trees) follow the document's nodes, in insertion order
+          assert_equal [a, b, c, detached.first, detached.last], (nodes | Nokogiri::XML::NodeSet.new(doc)).to_a
+          assert_equal [a, b, detached.last], (nodes - Nokogiri::XML::NodeSet.new(doc, [c, detached.first])).to_a
+          assert_equal 0, Nokogiri::XML::XPathContext.instrumentation_stats['dtm']['created']
+        ensure
+          Nokogiri::XML::XPathContext.instrumentation = false
+        end
+      end
     end
   end
 end
@@ -71,6 +71,171 @@ module Nokogiri
         assert_equal 4, @xml.search('//address[@domestic=$value]', nil, :value => 'Yes').length
       end
 
+      def test_variable_binding_between_queries
+        3.times do
+          assert_equal 4, @xml.xpath('//address[@domestic=$value]', nil, :value => 'Yes').length
+          assert_equal 0, @xml.xpath('//address[@domestic=$value]', nil, :value => 'No').length
+          assert_equal 5, @xml.xpath('//address').length
+          assert_equal 'Yes', @xml.xpath('string(//address[@domestic=$value]/@domestic)', nil, :value => 'Yes')
+        end
+      end
+
+      def test_at_xpath_and_at_css_return_first_match
+        employees = @xml.xpath('//employee')
+        assert_equal employees.first, @xml.at_xpath('//employee')
+        assert_equal employees.first, @xml.at_css('employee')
+        assert_equal employees[2], @xml.at_xpath('//employee[3]')
+        assert_equal @xml.root, @xml.at_xpath('//name').at_xpath('ancestor::*')
+        assert_equal employees.first, @xml.at_xpath('//nonexistent', '//employee', '//address')
+        assert_equal employees.first, @xml.at_css('nonexistent', 'employee')
+        assert_equal 'Yes', @xml.at_xpath('//address[@domestic=$value]', nil, :value => 'Yes')['domestic']
+        assert_nil @xml.at_xpath('//nonexistent')
+        assert_nil @xml.at_css('nonexistent')
+      end
+
+      def test_at_xpath_returns_non_node_set_results
+        count = @xml.xpath('//employee').length
+        assert_equal count, @xml.at_xpath('count(//employee)')
+        assert_equal @xml.at_xpath('//employee/name').text, @xml.at_xpath('string(//employee/name)')
+        assert_equal true, @xml.at_xpath('boolean(//employee)')
+        assert_equal count, Nokogiri::XML::XPathContext.new(@xml).evaluate_first('count(//employee)')
+      end
+
+      def test_xpath_batch
+        employees, count, domestic, none = @xml.xpath_batch(
+          '//employee', 'count(//address)', '//address[@domestic=$value]', '//nonexistent', nil, :value => 'Yes'
+        )
+        assert_equal @xml.xpath('//employee').to_a, employees.to_a
+        assert_equal 5, count
+        assert_equal 4, domestic.length
+        assert_equal 0, none.length
+
+        names = @xml.xpath('//employee').xpath_batch('./name', './salary')
+        assert_equal [5, 5], names.map(&:length)
+
+        assert_raises(Nokogiri::XML::XPath::SyntaxError) { @xml.xpath_batch('//employee', '//[') }
+      end
+
+      def test_compiled_expression
+        expr = XPath::Expression.new('//x:employee[@id = $id]/x:name', 'x' => 'urn:example')
+        assert_equal '//x:employee[@id = $id]/x:name', expr.path
+        assert_equal({ 'x' => 'urn:example' }, expr.namespaces)
+        assert expr.namespaces.frozen?
+
+        doc1 = Nokogiri::XML('<r xmlns="urn:example"><employee id="1"><name>A</name></employee></r>')
+        doc2 = Nokogiri::XML('<p:r xmlns:p="urn:example"><p:employee id="2"><p:name>B</p:name></p:employee></p:r>')
+        assert_equal ['A'], expr.evaluate(doc1, 'id' => '1').map(&:text)
+        assert_equal ['B'], expr.evaluate(doc2.root, 'id' => '2').map(&:text)
+        assert_equal [], expr.evaluate(doc2, 'id' => '1').map(&:text)
+
+        count = XPath::Expression.new('count(//*)')
+        assert_equal 3, count.evaluate(doc1)
+        assert_equal 3, doc2.xpath(count)
+        assert_equal 'B', doc2.at_xpath(XPath::Expression.new('//p:name', 'p' => 'urn:example')).text
+
+        handler = Class.new { def twice(nodes) nodes.length * 2 end }.new
+        assert_equal 6, XPath::Expression.new('twice(//*)', {}, handler).evaluate(doc1)
+
+        assert_raises(XPath::SyntaxError) { XPath::Expression.new('//[').evaluate(doc1) }
+
+        names, r, n = doc2.xpath_batch(XPath::Expression.new('//p:name', 'p' => 'urn:example'), '//p:r', expr,
+                                      { 'p' => 'urn:example' }, { 'id' => '2' })
+        assert_equal ['B'], names.map(&:text)
+        assert_equal [doc2.root], r.to_a
+        assert_equal ['B'], n.map(&:text)
+      end
+
+      def test_xpath_on_detached_subtrees
+        nodes = Array.new(40) do |i|
+          node = Nokogiri::XML::Node.new('detached', @xml)
+          node << Nokogiri::XML::Node.new("child#{i}", @xml)
+          assert_equal 1, node.xpath("./child#{i}").length
+          node
+        end
+        assert_equal 1, nodes.first.xpath('./child0').length
+        assert_equal 0, @xml.xpath('//detached').length
+
+        nodes.each { |node| @xml.root << node }
+        assert_equal 40, @xml.xpath('//detached').length
+        assert_equal @xml.root, nodes.last.at_xpath('..')
+
+        nodes.first.unlink
+        assert_equal 39, @xml.xpath('//detached').length
+        assert_equal 1, nodes.first.xpath('./child0').length
+        assert_nil nodes.first.at_xpath('..')
+      end
+
+      def test_css_class_and_child_position_selectors
+        doc = Nokogiri::XML(<<-eoxml)
+          <root>
+            <a class="foo"/><b/><a class="	bar  foo
+"/><a class="foobar"/><a class="bar"/>
+          </root>
+        eoxml
+        assert_equal 2, doc.css('a.foo').length
+        assert_equal 0, doc.css('a.fo').length
+        assert_equal ['a', 'b'], doc.css('root > :nth-child(-n+2)').map(&:name)
+        assert_equal ['a'], doc.css('a:first-child').map(&:name)
+        assert_equal 'bar', doc.at_css('root > :last-child')['class']
+        assert_equal 'foobar', doc.at_css('root > :nth-last-child(2)')['class']
+        assert_equal 0, doc.css('a:only-child').length
+      end
+
+      def test_exslt_functions
+        skip("EXSLT functions in XPath queries are JRuby specific") unless Nokogiri.jruby?
+
+        doc = Nokogiri::XML(<<-eoxml)
+          <root><n>3</n><n>10</n><n>7</n><a href="http://example.com">A</a><a href="/b">B</a></root>
+        eoxml
+        ns = {
+          'str' => 'http://exslt.org/strings', 'math' => 'http://exslt.org/math',
+          'set' => 'http://exslt.org/sets', 're' => 'http://exslt.org/regular-expressions'
+        }
+        assert_equal 10, doc.xpath('math:max(//n)', ns)
+        assert_equal ['3'], doc.xpath('math:lowest(//n)', ns).map(&:text)
+        assert_equal %w{ a b c }, doc.xpath('str:tokenize("a,b c", ", ")', ns).map(&:text)
+        assert_equal 2, doc.xpath('count(set:difference(//n, //n[2]))', ns)
+        assert_equal ['A'], doc.xpath('//a[re:test(@href, "^HTTP", "i")]', ns).map(&:text)
+        assert_equal %w{ 2018-10 2018 10 }, doc.xpath('re:match("2018-10", "(\d+)-(\d+)")', ns).map(&:text)
+        assert_equal 'a$b$c', doc.xpath('re:replace("a.b.c", "\.", "g", "$")', ns)
+
+        # along with a custom function handler
+        handler = Class.new { def twice(str) str * 2 end }.new
+        assert_equal 'AA', doc.xpath('twice(string(//a))', handler)
+        assert_equal true, doc.xpath('re:test(//a, "A")', ns, handler)
+      end
+
+      def test_exslt_node_set_results_are_not_retained
+        skip("EXSLT functions in XPath queries are JRuby specific") unless Nokogiri.jruby?
+        require 'weakref'
+
+        doc = Nokogiri::XML("<root><a>#{(1..200).to_a.join(' ')}</a><a>ab</a><a>b</a></root>")
+        ns = { 'str' => 'http://exslt.org/strings', 're' => 'http://exslt.org/regular-expressions' }
+
+        ref = lambda do
+          tokens = doc.xpath("str:tokenize(//a, ' ')", ns)
+          assert_equal 200, tokens.length
+          assert_equal [false, true, false], [
+            doc.equal?(tokens.first.document), tokens.first.document.equal?(tokens.last.document),
+            tokens.first.document.equal?(doc.xpath("str:split(//a, ' ')", ns).first.document)
+          ]
+          WeakRef.new(tokens.first.document)
+        end.call
+
+        XPathContext.instrumentation = true
+        begin
+          XPathContext.reset_instrumentation
+          assert_equal 1, doc.xpath("//a[count(re:match(., '(a)(b)')) > 0]", ns).length
+          assert_equal 1, XPathContext.instrumentation_stats['dtm']['created'] # for all 3 elements matched
+
+          30.times { doc.xpath("str:tokenize(//a, ' ')", ns) }
+        ensure
+          XPathContext.instrumentation = false
+        end
+        10.times { java.lang.System.gc; break unless ref.weakref_alive? }
+        refute ref.weakref_alive?, 'tokens document still retained'
+      end
+
       def test_unknown_attribute
         assert_equal 0, @xml.xpath('//employee[@id="asdfasdf"]/@fooo').length
         assert_nil @xml.xpath('//employee[@id="asdfasdf"]/@fooo')[0]
@@ -131,6 +296,33 @@ module Nokogiri
         assert_equal(set.to_a, @handler.things.flatten)
       end
 
+      def test_css_search_with_handler_methods_named_like_function_name_parts
+        doc = Nokogiri::XML('<ul><li class="a">1</li><li>2</li><li class="a">3</li></ul>')
+        handler = Class.new {
+          def index(nodes) nodes end
+          def css(nodes) nodes end
+          def child(nodes) nodes end
+        }.new
+        assert_equal %w[1], doc.css('li:first-child', handler).map(&:text)
+        assert_equal %w[3], doc.css('li:last-child', handler).map(&:text)
+        assert_equal %w[2], doc.css('li:nth-child(2)', handler).map(&:text)
+        assert_equal %w[1 3], doc.css('li.a', handler).map(&:text)
+        assert_equal %w[1 2 3], doc.xpath('//li[index(.)]', handler).map(&:text)
+      end
+
+      def test_css_builtin_functions_are_bound_for_css_queries_only
+        doc = Nokogiri::XML('<ul><li class="a">1</li><li>2</li><li class="a">3</li></ul>')
+        handler = Class.new {
+          def odd(nodes) nodes.select { |node| node.text.to_i.odd? } end
+        }.new
+        refute_match(/nokogiri/, Nokogiri::CSS.xpath_for('li.a:first-child').first)
+        assert_equal %w[1 3], doc.css('li.a:odd', handler).map(&:text)
+        assert_equal %w[1], doc.search('li.a:first-child').map(&:text)
+        assert_equal '3', doc.css('ul').css('li.a:last-child').text
+        assert_raises(Nokogiri::XML::XPath::SyntaxError) { doc.xpath("//li[nokogiri-css-class(@class, 'a')]") }
+        assert_raises(Nokogiri::XML::XPath::SyntaxError) { doc.xpath("//li[nokogiri-builtin:css-class(@class, 'a')]") }
+      end
+
       def test_search_with_css_query_uses_custom_selectors_with_arguments
         set = @xml.search('employee > address:my_filter("domestic", "Yes")', @handler)
         assert set.length > 0
@@ -232,6 +424,43 @@ module Nokogiri
         assert_nil doc.at_xpath('//div[@name="foo"]')
       end
 
+      def test_xpath_results_after_interleaved_appends
+        doc = Nokogiri::XML('<root><item>1</item><item>2</item></root>')
+        3.upto(6) do |i|
+          assert_equal i - 1, doc.xpath('//item').length
+          item = Nokogiri::XML::Node.new('item', doc)
+          item.content = i.to_s
+          (i.even? ? doc.root : doc.root.children.last) << item
+          assert_equal i.to_s, doc.xpath('//item').last.text
+        end
+        assert_equal 6, doc.xpath('//item').length
+        assert_equal 2, doc.xpath('//item/item').length
+        assert_equal %w{ 1 2 3 4 5 6 }, doc.xpath('//item/text()').map(&:text)
+      end
+
+      def test_xpath_results_after_interleaved_edits
+        doc = Nokogiri::XML('<root><a id="1"><b/></a><a id="2"><b/></a><c/></root>')
+        assert_equal 2, doc.xpath('//a').length
+
+        doc.at_xpath('//a[@id="1"]').add_previous_sibling('<a id="0"/>')
+        assert_equal %w{ 0 1 2 }, doc.xpath('//a/@id').map(&:value)
+
+        doc.at_xpath('//a[@id="1"]').unlink
+        assert_equal %w{ 0 2 }, doc.xpath('//a/@id').map(&:value)
+
+        doc.at_xpath('//c')['id'] = '3'
+        assert_equal 'c', doc.at_xpath('//*[@id="3"]').name
+
+        doc.at_xpath('//a[@id="2"]').name = 'd'
+        assert_equal %w{ 0 }, doc.xpath('//a/@id').map(&:value)
+        assert_equal 1, doc.xpath('//d/b').length
+
+        doc.at_xpath('//d').content = 'text'
+        assert_equal 0, doc.xpath('//d/b').length
+        assert_equal 'text', doc.at_xpath('//d/text()').text
+        assert_equal doc.to_xml, Nokogiri::XML(doc.to_xml).to_xml
+      end
+
       def test_custom_xpath_function_returns_string
         if Nokogiri.uses_libxml?
           result = @xml.xpath('thing("asdf")', @handler)
@@ -316,6 +545,18 @@ module Nokogiri
         assert nokogiri.xpath(xpath)
       end
 
+      def test_id_function_with_dtd_declared_ids
+        doc = Nokogiri::XML(<<-eoxml)
+          <!DOCTYPE root [<!ATTLIST item id ID #IMPLIED>]>
+          <root><item id="a"/><item id="b"><name>b</name></item><item id="c"/></root>
+        eoxml
+        assert_equal ['b'], doc.xpath("id('b')").map { |node| node['id'] }
+        assert_equal ['a', 'c'], doc.xpath("id('c a')").map { |node| node['id'] }
+        assert_equal 'b', doc.at_xpath("id('b')/name").text
+        assert_equal 0, doc.xpath("id('none')").length
+        assert_equal 1, doc.root.children.last.xpath("id('b')").length
+      end
+
       def test_custom_xpath_handler_with_args_under_gc_pressure
         # see http://github.com/sparklemotion/nokogiri/issues/#issue/345
         tool_inspector = Class.new do
@@ -373,6 +614,67 @@ module Nokogiri
         assert_equal foo, doc.xpath("//foo")
       end
 
+      def test_custom_xpath_function_called_per_node
+        doc = Nokogiri::XML('<r><a><b>1</b></a><a><b>2</b></a><a><b>4</b></a></r>')
+        handler = Class.new {
+          def even(nodes) nodes.first.text.to_i.even? end
+          def count_args(*args) args.size.to_s end
+          def nested(nodes) nodes.first.document.xpath('//b[even(.)]', self).length == 2 end
+        }.new
+        assert_equal %w{ 2 4 }, doc.xpath('//a[even(b)]/b', handler).map(&:text)
+        assert_equal doc, doc.xpath('//a[even(b)]', handler).first.document
+        assert_equal 3, doc.xpath('//a[count_args(b, 1) = "2"]', handler).length
+        assert_equal 3, doc.xpath('//a[nested(b)]', handler).length
+
+        if Nokogiri.jruby?
+          XPathContext.clear_function_stats
+          doc.xpath('//a[even(b)]', handler)
+          assert_nil XPathContext.function_stats["#{handler.class}#even"] # only recorded with instrumentation
+
+          XPathContext.instrumentation = true
+          begin
+            other = Class.new { def even(nodes) true end }.new
+            doc.xpath('//a[even(b)]', handler)
+            doc.xpath('//a[even(b)]', other)
+            stats = XPathContext.function_stats["#{handler.class}#even"]
+            assert_equal 3, stats['calls']
+            assert_kind_of Float, stats['time']
+            assert_equal 3, XPathContext.function_stats["#{other.class}#even"]['calls']
+            assert_nil XPathContext.function_stats['even']
+          ensure
+            XPathContext.instrumentation = false
+          end
+        end
+      end
+
+      def test_mixing_function_handlers_on_a_document
+        doc = Nokogiri::XML('<r><a><b>1</b></a><a><b>2</b></a><a><b>4</b></a></r>')
+        odd = Class.new { def odd(nodes) nodes.first.text.to_i.odd? end }.new
+        even = Class.new {
+          def initialize(other) @other = other end
+          def even(nodes)
+            # a nested query with another handler, must not affect the outer one
+            nodes.first.document.xpath('//b[odd(.)]', @other).length == 1 && nodes.first.text.to_i.even?
+          end
+        }.new(odd)
+
+        if Nokogiri.jruby?
+          XPathContext.instrumentation = true
+          XPathContext.reset_instrumentation
+        end
+        begin
+          3.times do
+            assert_equal %w{ 2 4 }, doc.xpath('//b[even(.)]', even).map(&:text)
+            assert_equal %w{ 1 }, doc.xpath('//b[odd(.)]', odd).map(&:text)
+            assert_equal 3, doc.xpath('//b').length
+          end
+          # the DTM is built once for the document, regardless of the handlers used
+          assert_equal 1, XPathContext.instrumentation_stats['dtm']['created'] if Nokogiri.jruby?
+        ensure
+          XPathContext.instrumentation = false if Nokogiri.jruby?
+        end
+      end
+
       def test_node_set_should_be_decorated
         # "called decorate on nill" exception in JRuby issue#514
         process_output= <<END
@@ -465,6 +767,75 @@ XML
           assert_equal false, e.message.include?('0:0')
         end
       end
+
+      def test_compiled_expression_cache
+        skip("compiled expression cache is JRuby specific") unless Nokogiri.jruby?
+
+        XPathContext.clear_expression_cache
+        3.times { assert_equal 5, @xml.xpath('//employee').length }
+        stats = XPathContext.expression_cache_stats
+        assert_equal 1, stats['misses']
+        assert_equal 2, stats['hits']
+
+        # namespace bindings are part of the key
+        @xml.xpath('//employee', 'foo' => 'http://example.com/foo')
+        assert_equal 2, XPathContext.expression_cache_stats['misses']
+      end
+
+      def test_instrumentation
+        skip("XPath instrumentation is JRuby specific") unless Nokogiri.jruby?
+
+        XPathContext.instrumentation = true
+        begin
+          XPathContext.reset_instrumentation
+          doc = Nokogiri::XML('<root><a><b/></a><a><b/></a></root>')
+          2.times { doc.xpath('//b') }
+          assert_equal 2, doc.xpath('count(//a)')
+          doc.root.children.first.remove
+          doc.xpath('//b')
+
+          stats = XPathContext.instrumentation_stats
+          b_stats = stats['expressions']['//b']
+          assert_equal 3, b_stats['count']
+          assert_equal 5, b_stats['results']
+          assert b_stats['nodes_visited'] > 0
+          assert b_stats['nodes_built'] > 0
+          %w{ compile_time execute_time iterate_time wrap_time }.each { |phase| assert_kind_of Float, b_stats[phase] }
+          assert_equal 1, stats['expressions']['count(//a)']['count']
+
+          assert_equal 1, stats['dtm']['invalidated']
+          assert_equal 2, stats['dtm']['created']
+          assert_equal %w{ created built invalidated released created built }, stats['dtm']['events'].map { |e| e['event'] }
+          assert_operator stats['dtm']['events'][1]['size'], :>=, 5
+          assert stats['expression_cache'].key?('hits')
+        ensure
+          XPathContext.instrumentation = false
+          XPathContext.reset_instrumentation
+        end
+        refute XPathContext.instrumentation?
+        doc.xpath('//b')
+        assert_equal({}, XPathContext.instrumentation_stats['expressions'])
+      end
+
+      def test_compiled_expression_cache_size
+        skip("compiled expression cache is JRuby specific") unless Nokogiri.jruby?
+
+        size = XPathContext.expression_cache_size
+        begin
+          XPathContext.clear_expression_cache
+          XPathContext.expression_cache_size = 2
+          %w{ //employee //address //name }.each { |path| @xml.xpath(path) }
+          assert_equal 2, XPathContext.expression_cache_stats['size']
+          assert_equal 2, XPathContext.expression_cache_stats['max_size']
+
+          XPathContext.expression_cache_size = 0
+          assert_equal 0, XPathContext.expression_cache_stats['size']
+          assert_equal 5, @xml.xpath('//employee').length
+          assert_raises(ArgumentError) { XPathContext.expression_cache_size = -1 }
+        ensure
+          XPathContext.expression_cache_size = size
+        end
+      end
     end
   end
 end